@@ -0,0 +1,173 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Binary format of model parameters files, which are much faster to write and read than lines of
+ * EMModelParameter.toString().
+ *
+ * A file starts with the MAGIC bytes, followed by a sequence of records, each starting with a tag byte:
+ * STRING_TAG - defines the next string of the string table (the first one has id 0, the next one 1,
+ * 		and so on), followed by the string as written by Text.writeString().
+ * PARAMETER_TYPE_TRANSITION / PARAMETER_TYPE_EMISSION - a transition or emission log probability,
+ * 		followed by the string ids of its from state (or state) and to state (or token) as vints and the
+ * 		log probability as a double.
+ *
+ * The writer defines every state and token right before the first parameter that uses it, so a file
+ * can be written in a single streaming pass, e.g. by a reducer, and names take up a few bytes per use.
+ *
+ * The main method converts model parameters files (in either format) to the text format.
+ */
+public class BinaryModelFile {
+
+	public static final byte[] MAGIC = { 'H', 'M', 'M', 'B', 1 };
+
+	private static final int STRING_TAG = 's';
+
+	/**
+	 * Writes model parameters in the binary format to an output stream.
+	 */
+	public static class Writer {
+
+		private final DataOutputStream out;
+		private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+		public Writer(OutputStream out) throws IOException {
+			this.out = new DataOutputStream(out);
+			this.out.write(MAGIC);
+		}
+
+		public void write(EMModelParameter param) throws IOException {
+			write(param.getParameterType(), param.getTransFromStateOrEmisState().toString(),
+					param.getTransToStateOrEmisToken().toString(), param.getLogCount());
+		}
+
+		public void write(char parameterType, String x, String y, double logProb) throws IOException {
+			int xId = getStringId(x);
+			int yId = getStringId(y);
+
+			out.writeByte(parameterType);
+			WritableUtils.writeVInt(out, xId);
+			WritableUtils.writeVInt(out, yId);
+			out.writeDouble(logProb);
+		}
+
+		/**
+		 * Returns the id of the given string, defining it first if it is new.
+		 */
+		private int getStringId(String str) throws IOException {
+			Integer id = stringIds.get(str);
+			if (id != null) {
+				return id;
+			}
+
+			id = stringIds.size();
+			stringIds.put(str, id);
+
+			out.writeByte(STRING_TAG);
+			Text.writeString(out, str);
+
+			return id;
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns true if the given bytes start with the magic bytes of the binary format.
+	 */
+	public static boolean hasMagic(byte[] header, int length) {
+		if (length < MAGIC.length) {
+			return false;
+		}
+
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (header[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads the records following the magic bytes of a binary model parameters file and fills in the
+	 * transition and emission log probabilities maps.
+	 */
+	public static void readRecords(InputStream inputStream, Map<StringPair, Double> transLogProbMap,
+			Map<StringPair, Double> emisLogProbMap) throws Exception {
+		DataInputStream in = new DataInputStream(inputStream);
+		List<String> strings = new ArrayList<String>();
+
+		int tag;
+		while (-1 != (tag = in.read())) {
+			switch (tag) {
+			case STRING_TAG:
+				strings.add(Text.readString(in));
+				break;
+			case EMModelParameter.PARAMETER_TYPE_TRANSITION:
+			case EMModelParameter.PARAMETER_TYPE_EMISSION:
+				StringPair pair = new StringPair(strings.get(WritableUtils.readVInt(in)), strings.get(WritableUtils.readVInt(in)));
+				double logProb = in.readDouble();
+
+				Map<StringPair, Double> logProbMap =
+						tag == EMModelParameter.PARAMETER_TYPE_TRANSITION ? transLogProbMap : emisLogProbMap;
+				if (logProbMap.containsKey(pair)) {
+					String name = tag == EMModelParameter.PARAMETER_TYPE_TRANSITION ? "Transition " : "Emission ";
+					throw new Exception(name + pair + " was read twice in EM model parameter files.");
+				}
+
+				logProbMap.put(pair, logProb);
+				break;
+			default:
+				throw new IOException("Invalid record tag " + tag + " in binary model parameters file.");
+			}
+		}
+	}
+
+	/**
+	 * Converts model parameters files to the text format.
+	 *
+	 * Arguments:
+	 * 0: The bucket URI, e.g. "s3n://distributed-hmm-em/" for the file system
+	 * 1: Path to a directory of model parameters files, e.g. the output of an EM iteration
+	 * 		"s3n://distributed-hmm-em/output-13/5"
+	 * 2: Path to the text file to write, which must not exist yet
+	 */
+	public static void main(String args[]) throws Exception {
+		if (args.length != 3) {
+			throw new Exception("3 arguments must be specified. " + args.length + " were passed.");
+		}
+
+		FileSystem fs = NativeS3FileSystem.get(new URI(args[0]), new Configuration());
+
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		ModelFiles.readModelParametersDir(fs, new Path(args[1]), transLogProbMap, emisLogProbMap);
+
+		FSDataOutputStream out = fs.create(new Path(args[2]), false);
+		EMDriver.outputEMModelParams(transLogProbMap, emisLogProbMap, out);
+		out.close();
+
+		fs.close();
+	}
+}
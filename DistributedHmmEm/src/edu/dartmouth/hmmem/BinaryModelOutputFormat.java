@@ -0,0 +1,42 @@
+package edu.dartmouth.hmmem;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Output format that writes the model parameters output by MaximizationReducer in the binary format
+ * of BinaryModelFile, one file per reducer.
+ */
+public class BinaryModelOutputFormat extends FileOutputFormat<NullWritable, EMModelParameter> {
+
+	@Override
+	public RecordWriter<NullWritable, EMModelParameter> getRecordWriter(FileSystem ignored, JobConf job,
+			String name, Progressable progress) throws IOException {
+		Path file = FileOutputFormat.getTaskOutputPath(job, name);
+		FileSystem fs = file.getFileSystem(job);
+		FSDataOutputStream out = fs.create(file, progress);
+
+		final BinaryModelFile.Writer writer = new BinaryModelFile.Writer(out);
+
+		return new RecordWriter<NullWritable, EMModelParameter>() {
+			@Override
+			public void write(NullWritable key, EMModelParameter value) throws IOException {
+				writer.write(value);
+			}
+
+			@Override
+			public void close(Reporter reporter) throws IOException {
+				writer.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,97 @@
+package edu.dartmouth.hmmem;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Splits lines of a corpus into tokens and looks up their ids in a TokenIndex, working directly on the
+ * UTF-8 bytes of the Text, so that no String is created per token. Tokens are separated by runs of
+ * ASCII whitespace and control characters (bytes up to ' '), which never occur inside the encoding of
+ * another character. This splits like trimming the line, splitting it on "\\s+" and trimming the
+ * pieces, except that control characters inside a piece split it as well.
+ *
+ * The buffers are reused from one line to the next, so a tokenizer must not be shared between threads,
+ * and the results of a line are only valid until the next call to tokenize().
+ */
+public class ByteTokenizer {
+
+	private final TokenIndex index;
+
+	private byte[] bytes;
+	private int[] tokenIds = new int[16];
+	private int[] tokenStarts = new int[16];
+	private int[] tokenEnds = new int[16];
+	private int numTokens = 0;
+
+	public ByteTokenizer(TokenIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Tokenizes the given line, and returns its number of tokens.
+	 */
+	public int tokenize(Text line) {
+		bytes = line.getBytes();
+		int length = line.getLength();
+		numTokens = 0;
+
+		int i = 0;
+		while (i < length) {
+			while (i < length && isSeparator(bytes[i])) {
+				i++;
+			}
+			if (i == length) {
+				break;
+			}
+
+			int start = i;
+			while (i < length && !isSeparator(bytes[i])) {
+				i++;
+			}
+
+			if (numTokens == tokenIds.length) {
+				int capacity = numTokens * 2;
+				tokenIds = Arrays.copyOf(tokenIds, capacity);
+				tokenStarts = Arrays.copyOf(tokenStarts, capacity);
+				tokenEnds = Arrays.copyOf(tokenEnds, capacity);
+			}
+
+			tokenIds[numTokens] = index.getTokenId(bytes, start, i);
+			tokenStarts[numTokens] = start;
+			tokenEnds[numTokens] = i;
+			numTokens++;
+		}
+
+		return numTokens;
+	}
+
+	/**
+	 * Returns the token ids of the last line, which may be followed by stale entries. The array is
+	 * reused and must not be modified.
+	 */
+	public int[] getTokenIds() {
+		return tokenIds;
+	}
+
+	public int getNumTokens() {
+		return numTokens;
+	}
+
+	/**
+	 * Decodes the given token of the last line to a String, e.g. to output a token that is not indexed.
+	 */
+	public String getToken(int i) {
+		try {
+			return Text.decode(bytes, tokenStarts[i], tokenEnds[i] - tokenStarts[i]);
+		} catch (CharacterCodingException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static boolean isSeparator(byte b) {
+		// UTF-8 bytes of non-ASCII characters are negative as Java bytes.
+		return b >= 0 && b <= ' ';
+	}
+}
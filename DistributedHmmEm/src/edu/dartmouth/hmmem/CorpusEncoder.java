@@ -0,0 +1,74 @@
+package edu.dartmouth.hmmem;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Mapper of the map-only job that encodes a text corpus (one observation sequence per line) to the
+ * token ids of the vocabulary of the run, once before the first EM iteration. The output is a
+ * SequenceFile of the byte offsets of the lines and their EncodedObservationSequences, which
+ * ExpectationMapper and ViterbiMapper read in the encoded input mode (see
+ * ExpectationMapper.INPUT_MODE_KEY) instead of tokenizing and hashing the text of every line in every
+ * iteration. Blank lines are dropped.
+ */
+public class CorpusEncoder extends MapReduceBase implements
+		Mapper<LongWritable, Text, LongWritable, EncodedObservationSequence> {
+
+	private static final Logger LOGGER = Logger.getLogger(CorpusEncoder.class.toString());
+
+	public static final String VOCABULARY_FILE_NAME = "vocabulary.txt";
+	public static final String ENCODED_CORPUS_DIR_NAME = "encoded";
+
+	// Reused from one map() call to the next.
+	private final EncodedObservationSequence encodedObservationSequence = new EncodedObservationSequence();
+	private ByteTokenizer tokenizer;
+
+	private boolean failure = false;
+	private String failureString;
+
+	@Override
+	public void map(LongWritable key, Text value,
+			OutputCollector<LongWritable, EncodedObservationSequence> output, Reporter reporter)
+			throws IOException {
+		if (failure) {
+			throw new IOException(failureString);
+		}
+
+		int length = tokenizer.tokenize(value);
+		if (length == 0) {
+			return;
+		}
+
+		encodedObservationSequence.set(tokenizer.getTokenIds(), length);
+		output.collect(key, encodedObservationSequence);
+	}
+
+	/**
+	 * Runs before each map. Reads the vocabulary of the run.
+	 */
+	@Override
+	public void configure(JobConf job) {
+		try {
+			Vocabulary vocabulary = ModelFiles.getVocabulary(job);
+			if (vocabulary == null) {
+				throw new Exception("No vocabulary was given (" + ExpectationMapper.VOCABULARY_PATH_KEY + ").");
+			}
+
+			tokenizer = new ByteTokenizer(vocabulary.getTokenIndex());
+		} catch (Exception e) {
+			failure = true;
+			failureString = e.toString();
+
+			LOGGER.log(Level.SEVERE, failureString);
+		}
+	}
+}
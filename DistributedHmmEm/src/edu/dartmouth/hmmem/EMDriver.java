@@ -4,25 +4,36 @@ import java.io.BufferedReader;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextInputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
 
@@ -30,10 +41,31 @@ public class EMDriver {
 
 	private static final Logger LOGGER = Logger.getLogger(EMDriver.class.toString());
 
-	public static final String EM_MODEL_PARAMS_FILE_NAME = "em_model_params.txt";
+	public static final String EM_MODEL_PARAMS_FILE_NAME = "em_model_params.bin";
+	// Written by the driver next to the model of each iteration, with the total log alpha of the corpus
+	// under the model the iteration ran on, as EMModelParameter.makeAlphaObject().toString().
+	public static final String TOTAL_LOG_ALPHA_FILE_NAME = "total_log_alpha.txt";
+	// Written by the driver to the output directory after each online EM iteration, with the number of
+	// mini-batches per split of ExpectationMapper.ONLINE_BATCHES_PER_SPLIT_KEY, for a resumed run.
+	public static final String ONLINE_BATCHES_PER_SPLIT_FILE_NAME = "online_batches_per_split.txt";
+	// The extrapolated models of SQUAREM are written to .../squarem-<iteration>/, after the iteration of
+	// their theta2.
+	public static final String SQUAREM_DIR_NAME_PREFIX = "squarem-";
+	public static final String VITERBI_DIR_NAME = "viterbi";
+	// Written by Hadoop to the output directory of a successful job.
+	private static final String SUCCESS_FILE_NAME = "_SUCCESS";
+
+	// "resume=true" continues the EM of a previous run in the same output directory after its last
+	// complete iteration, rather than starting over.
+	public static final String RESUME_KEY = "resume";
+	// The model parameters directory of a previous run to start from instead of a random model, e.g.
+	// to warm-start EM on a new corpus.
+	public static final String INITIAL_MODEL_KEY = "initial_model";
 
 	private static String startState = null;
 
+	private static final Map<String, String> jobOptions = new HashMap<String, String>();
+
 	/**
 	 * The main method that drives the distributed EM work flow.
 	 * 
@@ -48,22 +80,35 @@ public class EMDriver {
 	 * 6: Log convergence, i.e. difference between log alpha of EM iterations before final output is produced,
 	 * 		e.g. "0.00001"
 	 * 7: Max number of EM iterations, or -1 for no maximum.
+	 * 8+: Optional job options of the form "<key>=<value>", which are set in the configuration of every
+	 * 		job, e.g. "e_step_mode=scaled" (see ExpectationMapper.E_STEP_MODE_KEY), or "input_mode=encoded" to
+	 * 		encode the corpus to token ids once before the first iteration (see ExpectationMapper.INPUT_MODE_KEY),
+	 * 		or "acceleration=squarem" to extrapolate every two iterations with SQUAREM (see Squarem), or
+	 * 		"incremental_fraction=0.25" to recompute only a quarter of the corpus per iteration (see
+	 * 		IncrementalEStep), or "resume=true" to continue a run that died after its last complete
+	 * 		iteration, or "initial_model=<dir>" to start from the model in the given directory.
 	 * 
 	 * The main method first parses the input transition and emissions to generate
 	 * a random seed for the model parameters. Then, the method spawns MapReduce steps
 	 * that each perform one EM iteration until the difference between the log alphas
 	 * after each iteration is less than the given convergence argument.
+	 *
+	 * When resuming, the last complete iteration is the highest one with a total log alpha file, which
+	 * the driver writes after its job succeeded. The output of later, incomplete iterations is deleted,
+	 * and the EM goes on with the next iteration number, from the state the run had after that
+	 * iteration. SQUAREM starts a new cycle there, with its initial maximum step length. The start state
+	 * is again the first from state of the transitions file, which must be the one of the resumed run.
 	 */
 	public static void main(String args[]) throws Exception {
 		System.err.println("~~~~~~~~~~~~~EMDriver~~~~~~~~~~~~~");
 
 		// Obtain arguments in useful forms.
-		if (args.length != 8) {
-			System.err.println("Exactly 8 arguments must be specified. The arguments given were:");
+		if (args.length < 8) {
+			System.err.println("At least 8 arguments must be specified. The arguments given were:");
 			for (int i = 0; i < args.length; i++) {
 				System.err.println("\t" + i + ": " + args[i]);
 			}
-			throw new Exception("Exactly 8 arguments must be specified. " + args.length + " were passed.");
+			throw new Exception("At least 8 arguments must be specified. " + args.length + " were passed.");
 		}
 
 		String jobName = args[0];
@@ -80,6 +125,8 @@ public class EMDriver {
 		double logAlphaConvergence = Double.parseDouble(args[6]);
 		int maxIterations = Integer.parseInt(args[7]);
 
+		parseJobOptions(args, 8);
+
 		// Create the random seed for the model parameters.
 		FileSystem fs = NativeS3FileSystem.get(bucketURI, new Configuration());
 
@@ -91,48 +138,413 @@ public class EMDriver {
 		Map<StringPair, Double> emisLogProbMap = parsePairFile(emisFileReader, false);
 		emisFileReader.close();
 
-		// Output the random seed to a file to begin the EM.
-		Path randomModelParamsSeedPath = new Path(outputDirPathStr + "/0/" + EM_MODEL_PARAMS_FILE_NAME);
-		FSDataOutputStream randomModelParamsOut = fs.create(randomModelParamsSeedPath, false);
-		outputEMModelParams(transLogProbMap, emisLogProbMap, randomModelParamsOut);
-		randomModelParamsOut.close();
+		// The last complete iteration of the run to resume, or -1 to start a new run.
+		int lastIteration = -1;
+		if (Boolean.parseBoolean(jobOptions.get(RESUME_KEY))) {
+			lastIteration = findLastCompleteIteration(fs, outputDirPathStr);
+			if (lastIteration != -1) {
+				LOGGER.log(Level.INFO, "Resuming after iteration " + lastIteration + ".");
+				deleteIncompleteOutput(fs, outputDirPathStr, lastIteration);
+			} else {
+				LOGGER.log(Level.INFO, "Nothing to resume in " + outputDirPathStr + ", starting a new run.");
+			}
+		}
+
+		if (lastIteration == -1) {
+			// Start from the given initial model, restricted to the parameters of the transitions and
+			// emissions files, and otherwise from the random seed.
+			if (jobOptions.containsKey(INITIAL_MODEL_KEY)) {
+				Map<StringPair, Double> initialTransLogProbMap = new HashMap<StringPair, Double>();
+				Map<StringPair, Double> initialEmisLogProbMap = new HashMap<StringPair, Double>();
+				ModelFiles.readModelParametersDir(fs, new Path(jobOptions.get(INITIAL_MODEL_KEY)), initialTransLogProbMap,
+						initialEmisLogProbMap);
+				applyInitialModel(transLogProbMap, initialTransLogProbMap);
+				applyInitialModel(emisLogProbMap, initialEmisLogProbMap);
+			}
+
+			// Output the seed to a file to begin the EM, in the same binary format as the iterations.
+			Path seedModelParamsPath = new Path(outputDirPathStr + "/0/" + EM_MODEL_PARAMS_FILE_NAME);
+			FSDataOutputStream seedModelParamsOut = fs.create(seedModelParamsPath, false);
+			outputBinaryEMModelParams(transLogProbMap, emisLogProbMap, seedModelParamsOut);
+		}
+
+		// In the encoded input mode, encode the corpus to the token ids of the vocabulary of the emissions
+		// once, and run the jobs on the encoded corpus.
+		String vocabularyPathStr = null;
+		String inputMode = jobOptions.containsKey(ExpectationMapper.INPUT_MODE_KEY) ?
+				jobOptions.get(ExpectationMapper.INPUT_MODE_KEY) : ExpectationMapper.INPUT_MODE_TEXT;
+		if (inputMode.equals(ExpectationMapper.INPUT_MODE_ENCODED)) {
+			vocabularyPathStr = outputDirPathStr + "/" + CorpusEncoder.VOCABULARY_FILE_NAME;
+			String encodedDirPathStr = outputDirPathStr + "/" + CorpusEncoder.ENCODED_CORPUS_DIR_NAME + "/";
+
+			// A resumed run reuses the encoded corpus if its encoding job succeeded.
+			if (lastIteration == -1 || !fs.exists(new Path(encodedDirPathStr + SUCCESS_FILE_NAME))) {
+				fs.delete(new Path(vocabularyPathStr), false);
+				fs.delete(new Path(encodedDirPathStr), true);
+
+				List<String> tokens = new ArrayList<String>();
+				for (StringPair stateToken : emisLogProbMap.keySet()) {
+					tokens.add(stateToken.getY());
+				}
+
+				Vocabulary.fromTokens(tokens).write(fs.create(new Path(vocabularyPathStr), false));
+				runCorpusEncoding(jobName, bucketURIStr, inputDirPathStr, encodedDirPathStr, vocabularyPathStr);
+			}
+
+			inputDirPathStr = encodedDirPathStr;
+		} else if (!inputMode.equals(ExpectationMapper.INPUT_MODE_TEXT)) {
+			throw new Exception("Unknown input mode \"" + inputMode + "\".");
+		}
+
+		// With "acceleration=squarem", every two EM iterations are extrapolated (see Squarem).
+		Squarem squarem = null;
+		if (Squarem.ACCELERATION_SQUAREM.equals(jobOptions.get(Squarem.ACCELERATION_KEY))) {
+			squarem = new Squarem(jobOptions.containsKey(Squarem.MAX_STEP_LENGTH_KEY) ?
+					Double.parseDouble(jobOptions.get(Squarem.MAX_STEP_LENGTH_KEY)) : Squarem.DEFAULT_MAX_STEP_LENGTH);
+		} else if (jobOptions.containsKey(Squarem.ACCELERATION_KEY)) {
+			throw new Exception("Unknown acceleration \"" + jobOptions.get(Squarem.ACCELERATION_KEY) + "\".");
+		}
 
 		// Conduct the EM.
 		int finalIteration = -1;
 		Double prevTotalLogAlpha = Double.NEGATIVE_INFINITY;
-		for (int i = 1; i <= maxIterations || maxIterations < 0; i++) { // Start iteration at 1 because initial parameters are at .../0/
+		String modelParamsDirPathStr = outputDirPathStr + "/0/";
+		// The iterations of the current SQUAREM cycle, starting with the one whose output is theta0, and
+		// while the next iteration runs on an extrapolated model, the iteration of theta2 to fall back to.
+		List<Integer> cycleIterations = new ArrayList<Integer>();
+		cycleIterations.add(0);
+		int fallbackIteration = -1;
+		// With an incremental E-step, the iteration whose block counts the next one reuses.
+		boolean incremental = jobOptions.containsKey(IncrementalEStep.INCREMENTAL_FRACTION_KEY);
+		int statisticsIteration = -1;
+		// With online EM, the number of mini-batches per split of the last iteration.
+		int onlineBatchesPerSplit = 0;
+		// With hot states split across reducers, each iteration's output is normalized by the driver.
+		float hotStateFactor = jobOptions.containsKey(SkewAwarePartitioner.HOT_STATE_FACTOR_KEY) ?
+				Float.parseFloat(jobOptions.get(SkewAwarePartitioner.HOT_STATE_FACTOR_KEY)) : SkewAwarePartitioner.DEFAULT_HOT_STATE_FACTOR;
+
+		// Restore the state of the resumed run after its last complete iteration. If that iteration had
+		// already converged, the run only has the Viterbi job left.
+		int firstIteration = 1;
+		boolean converged = false;
+		if (lastIteration > 0) {
+			firstIteration = lastIteration + 1;
+			finalIteration = getResumedModelIteration(fs, outputDirPathStr, lastIteration);
+			prevTotalLogAlpha = readPrevTotalLogAlpha(fs, outputDirPathStr, lastIteration);
+			converged = hasConverged(fs, outputDirPathStr, lastIteration, logAlphaConvergence);
+
+			modelParamsDirPathStr = outputDirPathStr + "/" + finalIteration + "/";
+			cycleIterations.set(0, finalIteration);
+			statisticsIteration = finalIteration;
+			onlineBatchesPerSplit = readOnlineBatchesPerSplit(fs, outputDirPathStr);
+		}
+
+		for (int i = firstIteration; !converged && (i <= maxIterations || maxIterations < 0); i++) { // Initial parameters are at .../0/
 			LOGGER.log(Level.INFO, "Running EM iteration " + i + "!");
 
 			finalIteration = i;
-			runEMIteration(jobName, bucketURIStr, inputDirPathStr, outputDirPathStr, startState, i);
-			
-			// Check for alpha convergence.
-			String alphaPathStr = outputDirPathStr + "/" + i + "/" + MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME;
-			Path alphaPath = new Path(alphaPathStr);
-			FSDataInputStream alphaInputStream = fs.open(alphaPath);
-			BufferedReader alphaBufferedReader = new BufferedReader(new InputStreamReader(alphaInputStream)); 
+			String statisticsDirPathStr = incremental && statisticsIteration != -1 ?
+					outputDirPathStr + "/" + statisticsIteration + "/" + IncrementalEStep.STATISTICS_DIR_NAME + "/" : null;
+			Counters counters = runEMIteration(jobName, bucketURIStr, inputDirPathStr, vocabularyPathStr, outputDirPathStr,
+					modelParamsDirPathStr, statisticsDirPathStr, startState, onlineBatchesPerSplit, i);
+			double totalLogAlpha = ExpectationMapper.getTotalLogAlpha(counters);
+			if (totalLogAlpha == Double.NEGATIVE_INFINITY) {
+				// The convergence test would compare -Infinity with itself and never stop.
+				throw new Exception("The model of iteration " + i + " cannot generate any sequence of the corpus.");
+			}
+			modelParamsDirPathStr = outputDirPathStr + "/" + i + "/";
+			statisticsIteration = i;
+
+			if (ExpectationMapper.getOnlineBatchesPerSplit(counters) > 0) {
+				onlineBatchesPerSplit = ExpectationMapper.getOnlineBatchesPerSplit(counters);
+				FSDataOutputStream batchesOut = fs.create(new Path(outputDirPathStr + "/" + ONLINE_BATCHES_PER_SPLIT_FILE_NAME), true);
+				batchesOut.write(Integer.toString(onlineBatchesPerSplit).getBytes());
+				batchesOut.close();
+			}
+
+			// The split emission rows of hot states hold summed log counts, so normalize them before the
+			// iteration is complete.
+			if (hotStateFactor > 0) {
+				normalizeModelParamsDir(fs, outputDirPathStr + "/" + i + "/");
+			}
 			
-			EMModelParameter totalLogAlphaObject = EMModelParameter.fromString(alphaBufferedReader.readLine());
-			Double totalLogAlpha = totalLogAlphaObject.getLogCount();
+			// Keep a record of the total log alpha with the model, but check for convergence with the
+			// value from the counters.
+			Path alphaPath = new Path(outputDirPathStr + "/" + i + "/" + TOTAL_LOG_ALPHA_FILE_NAME);
+			FSDataOutputStream alphaOut = fs.create(alphaPath, false);
+			alphaOut.write(EMModelParameter.makeAlphaObject(totalLogAlpha).toString().getBytes());
+			alphaOut.close();
 			
 			System.err.println("Total log alpha for iteration " + i + ": " + totalLogAlpha);
+
+			if (fallbackIteration != -1) {
+				// The iteration ran on an extrapolated model. Keep it if it is at least as likely as theta1,
+				// and otherwise go on from theta2 as plain EM would have.
+				boolean accepted = totalLogAlpha >= prevTotalLogAlpha;
+				squarem.reportResult(accepted);
+
+				cycleIterations.clear();
+				if (accepted) {
+					prevTotalLogAlpha = totalLogAlpha;
+					cycleIterations.add(i);
+				} else {
+					LOGGER.log(Level.INFO, "Extrapolated model is less likely, falling back to iteration " + fallbackIteration + ".");
+					finalIteration = fallbackIteration;
+					modelParamsDirPathStr = outputDirPathStr + "/" + fallbackIteration + "/";
+					statisticsIteration = fallbackIteration;
+					cycleIterations.add(fallbackIteration);
+				}
+
+				fallbackIteration = -1;
+				continue;
+			}
 			
 			if (totalLogAlpha - prevTotalLogAlpha < logAlphaConvergence) {
 				break;
 			} else {
 				prevTotalLogAlpha = totalLogAlpha;
 			}
+
+			cycleIterations.add(i);
+			if (squarem != null && cycleIterations.size() == 3 && (i < maxIterations || maxIterations < 0)) {
+				modelParamsDirPathStr = outputDirPathStr + "/" + SQUAREM_DIR_NAME_PREFIX + i + "/";
+				extrapolateModels(fs, squarem, outputDirPathStr, cycleIterations, modelParamsDirPathStr);
+				fallbackIteration = i;
+			}
 		}
 
 		// Run Viterbi to tag the input corpora.
 		if (finalIteration != -1) {
-			String modelParamsDirPathStr = outputDirPathStr + "/" + finalIteration + "/";
-			runViterbi(jobName, bucketURIStr, inputDirPathStr, outputDirPathStr, startState, modelParamsDirPathStr);
+			String finalModelParamsDirPathStr = outputDirPathStr + "/" + finalIteration + "/";
+			runViterbi(jobName, bucketURIStr, inputDirPathStr, vocabularyPathStr, outputDirPathStr, startState, finalModelParamsDirPathStr,
+					finalIteration);
 		}
 
 		fs.close();
 	}
 
+	/**
+	 * Returns the last complete iteration in the given output directory, i.e. the highest numbered
+	 * directory with a total log alpha file, or 0 if only the initial model is there, or -1 if not even that.
+	 */
+	static int findLastCompleteIteration(FileSystem fs, String outputDirPathStr) throws IOException {
+		Path outputDirPath = new Path(outputDirPathStr);
+		if (!fs.exists(outputDirPath)) {
+			return -1;
+		}
+
+		int lastIteration = -1;
+		for (FileStatus fileStatus : fs.listStatus(outputDirPath)) {
+			int iteration = parseIterationDirName(fileStatus);
+			if (iteration > lastIteration && (iteration == 0 ?
+					fs.exists(new Path(fileStatus.getPath(), EM_MODEL_PARAMS_FILE_NAME)) :
+					fs.exists(new Path(fileStatus.getPath(), TOTAL_LOG_ALPHA_FILE_NAME)))) {
+				lastIteration = iteration;
+			}
+		}
+
+		return lastIteration;
+	}
+
+	/**
+	 * Deletes the output of the iterations after the given last complete one, of the extrapolations for
+	 * them, and of the Viterbi job.
+	 */
+	static void deleteIncompleteOutput(FileSystem fs, String outputDirPathStr, int lastIteration) throws IOException {
+		for (FileStatus fileStatus : fs.listStatus(new Path(outputDirPathStr))) {
+			String name = fileStatus.getPath().getName();
+			int iteration = parseIterationDirName(fileStatus);
+
+			if (iteration > lastIteration || name.equals(VITERBI_DIR_NAME) || (name.startsWith(SQUAREM_DIR_NAME_PREFIX)
+					&& Integer.parseInt(name.substring(SQUAREM_DIR_NAME_PREFIX.length())) >= lastIteration)) {
+				LOGGER.log(Level.INFO, "Deleting incomplete output " + fileStatus.getPath());
+				fs.delete(fileStatus.getPath(), true);
+			}
+		}
+	}
+
+	/**
+	 * Returns the iteration of the given output directory entry, or -1 if it is not an iteration directory,
+	 * e.g. the encoded corpus or an extrapolated model.
+	 */
+	private static int parseIterationDirName(FileStatus fileStatus) {
+		String name = fileStatus.getPath().getName();
+		if (!fileStatus.isDir() || name.length() == 0) {
+			return -1;
+		}
+
+		for (int i = 0; i < name.length(); i++) {
+			if (!Character.isDigit(name.charAt(i))) {
+				return -1;
+			}
+		}
+
+		return Integer.parseInt(name);
+	}
+
+	/**
+	 * Normalizes the emission rows of the model parameters files in the given directory, and replaces
+	 * them with a single EM_MODEL_PARAMS_FILE_NAME file. The new file is written under a hidden name
+	 * first, so the directory never holds both.
+	 */
+	private static void normalizeModelParamsDir(FileSystem fs, String modelParamsDirPathStr) throws Exception {
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		ModelFiles.readModelParametersDir(fs, new Path(modelParamsDirPathStr), transLogProbMap, emisLogProbMap);
+		StaticUtil.normalizeLogProbMap(emisLogProbMap);
+
+		Path tmpPath = new Path(modelParamsDirPathStr + "_" + EM_MODEL_PARAMS_FILE_NAME);
+		outputBinaryEMModelParams(transLogProbMap, emisLogProbMap, fs.create(tmpPath, true));
+
+		for (FileStatus fileStatus : fs.listStatus(new Path(modelParamsDirPathStr))) {
+			if (ModelFiles.isModelParametersFile(fileStatus)) {
+				fs.delete(fileStatus.getPath(), false);
+			}
+		}
+
+		if (!fs.rename(tmpPath, new Path(modelParamsDirPathStr + EM_MODEL_PARAMS_FILE_NAME))) {
+			throw new IOException("Could not rename " + tmpPath + ".");
+		}
+	}
+
+	/**
+	 * Returns the iteration whose model a run resumed after the given complete iteration goes on from:
+	 * that iteration, or if it ran on an extrapolated model that was less likely than theta1, theta2 as
+	 * the run would have fallen back to.
+	 */
+	static int getResumedModelIteration(FileSystem fs, String outputDirPathStr, int lastIteration) throws Exception {
+		if (isExtrapolatedIteration(fs, outputDirPathStr, lastIteration)
+				&& readTotalLogAlpha(fs, outputDirPathStr, lastIteration) < readTotalLogAlpha(fs, outputDirPathStr, lastIteration-1)) {
+			return lastIteration-1;
+		}
+
+		return lastIteration;
+	}
+
+	/**
+	 * Returns true if the run stopped after the given complete iteration because it had converged.
+	 * An iteration on an extrapolated model is never tested for convergence.
+	 */
+	static boolean hasConverged(FileSystem fs, String outputDirPathStr, int lastIteration, double logAlphaConvergence)
+			throws Exception {
+		boolean converged = !isExtrapolatedIteration(fs, outputDirPathStr, lastIteration)
+				&& readTotalLogAlpha(fs, outputDirPathStr, lastIteration)
+						- readPrevTotalLogAlpha(fs, outputDirPathStr, lastIteration-1) < logAlphaConvergence;
+		if (converged) {
+			LOGGER.log(Level.INFO, "Iteration " + lastIteration + " had already converged.");
+		}
+
+		return converged;
+	}
+
+	/**
+	 * Returns true if the given iteration ran on a model extrapolated by SQUAREM.
+	 */
+	private static boolean isExtrapolatedIteration(FileSystem fs, String outputDirPathStr, int iteration) throws IOException {
+		return fs.exists(new Path(outputDirPathStr + "/" + SQUAREM_DIR_NAME_PREFIX + (iteration-1) + "/"));
+	}
+
+	/**
+	 * Returns the total log alpha that the run tested the iteration after the given complete one
+	 * against: that of the given iteration, or after a rejected extrapolation, that of the iteration
+	 * before it. -Infinity for the initial model.
+	 */
+	static double readPrevTotalLogAlpha(FileSystem fs, String outputDirPathStr, int iteration) throws Exception {
+		if (iteration == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		double totalLogAlpha = readTotalLogAlpha(fs, outputDirPathStr, iteration);
+		if (isExtrapolatedIteration(fs, outputDirPathStr, iteration)) {
+			totalLogAlpha = Math.max(totalLogAlpha, readTotalLogAlpha(fs, outputDirPathStr, iteration-1));
+		}
+
+		return totalLogAlpha;
+	}
+
+	/**
+	 * Reads the number of mini-batches per split written after the last online EM iteration, or returns
+	 * 0 if the run is not online.
+	 */
+	private static int readOnlineBatchesPerSplit(FileSystem fs, String outputDirPathStr) throws Exception {
+		Path batchesPath = new Path(outputDirPathStr + "/" + ONLINE_BATCHES_PER_SPLIT_FILE_NAME);
+		if (!fs.exists(batchesPath)) {
+			return 0;
+		}
+
+		BufferedReader batchesReader = new BufferedReader(new InputStreamReader(fs.open(batchesPath)));
+		try {
+			return Integer.parseInt(batchesReader.readLine().trim());
+		} finally {
+			batchesReader.close();
+		}
+	}
+
+	/**
+	 * Reads the total log alpha written after the given iteration.
+	 */
+	private static double readTotalLogAlpha(FileSystem fs, String outputDirPathStr, int iteration) throws Exception {
+		Path alphaPath = new Path(outputDirPathStr + "/" + iteration + "/" + TOTAL_LOG_ALPHA_FILE_NAME);
+		BufferedReader alphaReader = new BufferedReader(new InputStreamReader(fs.open(alphaPath)));
+		try {
+			return EMModelParameter.fromString(alphaReader.readLine()).getLogCount();
+		} finally {
+			alphaReader.close();
+		}
+	}
+
+	/**
+	 * Replaces the random log probabilities of the given map with those of the given initial model. A
+	 * parameter the initial model lacks gets the smallest probability of its row in the initial model,
+	 * and rows the initial model lacks altogether keep their random ones. The rows are then renormalized.
+	 */
+	static void applyInitialModel(Map<StringPair, Double> logProbMap, Map<StringPair, Double> initialLogProbMap) {
+		Map<String, Double> minLogProbs = new HashMap<String, Double>();
+		for (Entry<StringPair, Double> entry : initialLogProbMap.entrySet()) {
+			Double minLogProb = minLogProbs.get(entry.getKey().getX());
+			if (entry.getValue() != Double.NEGATIVE_INFINITY && (minLogProb == null || entry.getValue() < minLogProb)) {
+				minLogProbs.put(entry.getKey().getX(), entry.getValue());
+			}
+		}
+
+		for (Entry<StringPair, Double> entry : logProbMap.entrySet()) {
+			Double initialLogProb = initialLogProbMap.get(entry.getKey());
+			if (initialLogProb != null && initialLogProb != Double.NEGATIVE_INFINITY) {
+				entry.setValue(initialLogProb);
+			} else if (minLogProbs.containsKey(entry.getKey().getX())) {
+				entry.setValue(minLogProbs.get(entry.getKey().getX()));
+			}
+		}
+
+		StaticUtil.normalizeLogProbMap(logProbMap);
+	}
+
+	/**
+	 * Extrapolates from the models output by the given three iterations with SQUAREM, and writes the
+	 * extrapolated model to the given directory.
+	 */
+	private static void extrapolateModels(FileSystem fs, Squarem squarem, String outputDirPathStr, List<Integer> iterations,
+			String modelParamsDirPathStr) throws Exception {
+		List<Map<StringPair, Double>> transLogProbMaps = new ArrayList<Map<StringPair, Double>>();
+		List<Map<StringPair, Double>> emisLogProbMaps = new ArrayList<Map<StringPair, Double>>();
+		for (int iteration : iterations) {
+			Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+			Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+			ModelFiles.readModelParametersDir(fs, new Path(outputDirPathStr + "/" + iteration + "/"), transLogProbMap, emisLogProbMap);
+			transLogProbMaps.add(transLogProbMap);
+			emisLogProbMaps.add(emisLogProbMap);
+		}
+
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		double stepLength = squarem.extrapolate(transLogProbMaps.get(0), emisLogProbMaps.get(0), transLogProbMaps.get(1),
+				emisLogProbMaps.get(1), transLogProbMaps.get(2), emisLogProbMaps.get(2), transLogProbMap, emisLogProbMap);
+		LOGGER.log(Level.INFO, "Extrapolated iterations " + iterations + " with step length " + stepLength + ".");
+
+		FSDataOutputStream out = fs.create(new Path(modelParamsDirPathStr + EM_MODEL_PARAMS_FILE_NAME), false);
+		outputBinaryEMModelParams(transLogProbMap, emisLogProbMap, out);
+	}
+
 	/**
 	 * Parses the given pair file, where each line is of the form
 	 * "<from_state> <to_state>" (for transition files) or "<state> <token>" for emission files.
@@ -144,7 +556,7 @@ public class EMDriver {
 	 * If isTransFile is set, indicating we are parsing a transition file, then the fromState of the
 	 * first transition is used as the start state for all emission sequences.
 	 */
-	private static Map<StringPair, Double> parsePairFile(BufferedReader fileReader, boolean isTransFile) throws Exception {
+	static Map<StringPair, Double> parsePairFile(BufferedReader fileReader, boolean isTransFile) throws Exception {
 		Random random = new Random();
 		Map<StringPair, Double> logProbMap = new HashMap<StringPair, Double>();
 
@@ -185,6 +597,36 @@ public class EMDriver {
 		return logProbMap;
 	}
 
+	/**
+	 * Returns the start state, i.e. the from state of the first transition parsed by parsePairFile().
+	 */
+	static String getStartState() {
+		return startState;
+	}
+
+	/**
+	 * Parses the optional "<key>=<value>" job options starting at args[firstOptionIndex].
+	 */
+	static void parseJobOptions(String[] args, int firstOptionIndex) throws Exception {
+		for (int i = firstOptionIndex; i < args.length; i++) {
+			int equalsIndex = args[i].indexOf('=');
+			if (equalsIndex <= 0) {
+				throw new Exception("Argument " + i + " (\"" + args[i] + "\") is not of the form <key>=<value>.");
+			}
+
+			jobOptions.put(args[i].substring(0, equalsIndex), args[i].substring(equalsIndex + 1));
+		}
+	}
+
+	/**
+	 * Sets the optional job options in the given job conf.
+	 */
+	static void setJobOptions(Configuration conf) {
+		for (Entry<String, String> option : jobOptions.entrySet()) {
+			conf.set(option.getKey(), option.getValue());
+		}
+	}
+
 	/**
 	 * Given two numbers log(x) and log(y), returns log(x+y). If both log(x) and log(y) are negative,
 	 * calculates the log of the sum in the following manner to reduce the risk of underflow:
@@ -247,49 +689,138 @@ public class EMDriver {
 	}
 
 	/**
-	 * Conduct a single iteration of EM. Returns true if the algorithm has converged.
+	 * Outputs the given transition and emission log prob maps in the binary format of BinaryModelFile to the
+	 * given OutputStream, and closes it.
 	 */
-	private static void runEMIteration(String jobName, String bucketURIStr, String inputDirPathStr,
-			String outputDirPathStr, String startState, int iteration) throws IOException {
+	public static void outputBinaryEMModelParams(Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap, OutputStream out) throws IOException {
+		BinaryModelFile.Writer writer = new BinaryModelFile.Writer(out);
+
+		for (Entry<StringPair, Double> entry : transLogProbMap.entrySet()) {
+			writer.write(EMModelParameter.PARAMETER_TYPE_TRANSITION, entry.getKey().getX(), entry.getKey().getY(), entry.getValue());
+		}
+
+		for (Entry<StringPair, Double> entry : emisLogProbMap.entrySet()) {
+			writer.write(EMModelParameter.PARAMETER_TYPE_EMISSION, entry.getKey().getX(), entry.getKey().getY(), entry.getValue());
+		}
+
+		writer.close();
+	}
+
+	/**
+	 * Registers the model parameters files of the given directory in the DistributedCache of the given
+	 * job, so that each node downloads the model once instead of each task reading it from S3.
+	 */
+	private static void addModelParamsToCache(String bucketURIStr, String modelParamsDirPathStr, JobConf conf) throws IOException {
+		FileSystem fs = NativeS3FileSystem.get(URI.create(bucketURIStr), conf);
+		ModelFiles.addModelParametersDirToCache(fs, new Path(modelParamsDirPathStr), conf);
+	}
+
+	/**
+	 * Sets the input of a job: the text corpus in the given directory if vocabularyPathStr is null, and
+	 * otherwise the corpus encoded with the vocabulary at vocabularyPathStr, which is also cached.
+	 */
+	private static void setInput(String bucketURIStr, String inputDirPathStr, String vocabularyPathStr, JobConf conf) throws IOException {
+		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
+
+		if (vocabularyPathStr == null) {
+			conf.setInputFormat(TextInputFormat.class);
+		} else {
+			conf.setInputFormat(SequenceFileInputFormat.class);
+			conf.set(ExpectationMapper.VOCABULARY_PATH_KEY, vocabularyPathStr);
+
+			FileSystem fs = NativeS3FileSystem.get(URI.create(bucketURIStr), conf);
+			DistributedCache.addCacheFile(fs.makeQualified(new Path(vocabularyPathStr)).toUri(), conf);
+		}
+	}
+
+	/**
+	 * Run the map-only job that encodes the text corpus in the input directory with the vocabulary at
+	 * vocabularyPathStr, to the given directory.
+	 */
+	private static void runCorpusEncoding(String jobName, String bucketURIStr, String inputDirPathStr,
+			String encodedDirPathStr, String vocabularyPathStr) throws IOException {
+		JobConf conf = new JobConf(EMDriver.class);
+		conf.setJobName(jobName + "-encoding");
+
+		conf.setMapperClass(CorpusEncoder.class);
+		conf.setNumReduceTasks(0);
+
+		conf.setInputFormat(TextInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(EncodedObservationSequence.class);
+
+		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
+		FileOutputFormat.setOutputPath(conf, new Path(encodedDirPathStr));
+
+		conf.set(ExpectationMapper.BUCKET_URI_KEY, bucketURIStr);
+		conf.set(ExpectationMapper.VOCABULARY_PATH_KEY, vocabularyPathStr);
+		setJobOptions(conf);
+
+		JobClient.runJob(conf);
+	}
+
+	/**
+	 * Conduct a single iteration of EM on the model in the given directory, usually the output of the
+	 * previous iteration. With an incremental E-step, the mappers reuse the block counts in the given
+	 * statistics directory, if not null. With online EM, the mappers go on from the given number of
+	 * mini-batches per split in each earlier iteration. Returns the counters of the job, through which
+	 * the mappers publish the total log alpha of the corpus under that model.
+	 */
+	private static Counters runEMIteration(String jobName, String bucketURIStr, String inputDirPathStr, String vocabularyPathStr,
+			String outputDirPathStr, String modelParamsDirPathStr, String statisticsDirPathStr, String startState,
+			int onlineBatchesPerSplit, int iteration) throws IOException {
 		JobConf conf = new JobConf(EMDriver.class);
 		conf.setJobName(jobName + "-" + iteration);
 
 		conf.setMapperClass(ExpectationMapper.class);
+		conf.setCombinerClass(LogCountCombiner.class);
 		conf.setReducerClass(MaximizationReducer.class);
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setOutputFormat(BinaryModelOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(EMModelParameter.class);
+		conf.setMapOutputKeyClass(EMRecordKey.class);
+		conf.setMapOutputValueClass(DoubleWritable.class);
 		conf.setOutputKeyClass(NullWritable.class);
 		conf.setOutputValueClass(EMModelParameter.class);
 
-		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
+		// One reduce() call per parameter, with the parameters of a state in consecutive calls. The
+		// comparator works on the serialized keys. The states are balanced across the reducers.
+		conf.setOutputKeyComparatorClass(EMRecordKey.Comparator.class);
+		conf.setPartitionerClass(SkewAwarePartitioner.class);
+
+		setInput(bucketURIStr, inputDirPathStr, vocabularyPathStr, conf);
 		FileOutputFormat.setOutputPath(conf, new Path(outputDirPathStr + "/" + iteration + "/"));
 
 		conf.set(ExpectationMapper.BUCKET_URI_KEY, bucketURIStr);
 
-		String modelParamsDirPathStr = outputDirPathStr + "/" + (iteration-1) + "/";
 		conf.set(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY, modelParamsDirPathStr);
+		conf.setInt(ExpectationMapper.MODEL_ITERATION_KEY, iteration-1);
+		conf.setInt(ExpectationMapper.ONLINE_BATCHES_PER_SPLIT_KEY, onlineBatchesPerSplit);
+		addModelParamsToCache(bucketURIStr, modelParamsDirPathStr, conf);
 
 		conf.set(ExpectationMapper.START_STATE_KEY, startState);
+		if (statisticsDirPathStr != null) {
+			conf.set(IncrementalEStep.PREVIOUS_STATISTICS_DIR_PATH_KEY, statisticsDirPathStr);
+		}
+		setJobOptions(conf);
 
-		JobClient.runJob(conf);
+		RunningJob job = JobClient.runJob(conf);
+		return job.getCounters();
 	}
 
 	/**
 	 * Run a Viterbi tagging job.
 	 */
-	private static void runViterbi(String jobName, String bucketURIStr, String inputDirPathStr,
-			String outputDirPathStr, String startState, String modelParamsDirPathStr) throws IOException {
+	private static void runViterbi(String jobName, String bucketURIStr, String inputDirPathStr, String vocabularyPathStr,
+			String outputDirPathStr, String startState, String modelParamsDirPathStr, int modelIteration) throws IOException {
 		JobConf conf = new JobConf(EMDriver.class);
 		conf.setJobName(jobName + "-viterbi");
 
 		conf.setMapperClass(ViterbiMapReduce.ViterbiMapper.class);
 		conf.setReducerClass(ViterbiMapReduce.ViterbiReducer.class);
 
-		conf.setInputFormat(TextInputFormat.class);
 		conf.setOutputFormat(TextOutputFormat.class);
 
 		conf.setMapOutputKeyClass(NullWritable.class);
@@ -297,12 +828,15 @@ public class EMDriver {
 		conf.setOutputKeyClass(NullWritable.class);
 		conf.setOutputValueClass(TaggedObservationSequence.class);
 
-		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
-		FileOutputFormat.setOutputPath(conf, new Path(outputDirPathStr + "/viterbi/"));
+		setInput(bucketURIStr, inputDirPathStr, vocabularyPathStr, conf);
+		FileOutputFormat.setOutputPath(conf, new Path(outputDirPathStr + "/" + VITERBI_DIR_NAME + "/"));
 
 		conf.set(ExpectationMapper.BUCKET_URI_KEY, bucketURIStr);
 		conf.set(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY, modelParamsDirPathStr);
+		conf.setInt(ExpectationMapper.MODEL_ITERATION_KEY, modelIteration);
+		addModelParamsToCache(bucketURIStr, modelParamsDirPathStr, conf);
 		conf.set(ExpectationMapper.START_STATE_KEY, startState);
+		setJobOptions(conf);
 
 		JobClient.runJob(conf);
 	}
@@ -0,0 +1,130 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Intermediate key of the EM job, whose value is the log count as a DoubleWritable.
+ * Instead of names, the key holds the ids of the compiled HmmModel that every task of the job shares:
+ * the id of the state the count belongs to (either start of transition or state for emission), the
+ * parameter type, and the id of its second string (the to state of a
+ * transition or the token of an emission). The ids are written as vints, so most keys take 3 to 5
+ * bytes, and are only mapped back to names by the reducer when it writes the new model.
+ *
+ * Keys sort by their serialized bytes, without being deserialized. A vint is never a prefix of
+ * another vint, so the keys of a state are contiguous in that order, and the counts of the same
+ * parameter are next to each other. Each reduce() call gets the counts of one parameter, and
+ * MaximizationReducer assembles the rows of a state from consecutive calls. The key passed to
+ * reduce() stays that of the first value of the group, so keys must not be grouped more coarsely
+ * than the parameter. SkewAwarePartitioner sends all the keys of a state to the same reducer,
+ * except for the emissions of hot states.
+ */
+public class EMRecordKey implements WritableComparable<EMRecordKey> {
+
+	// State id of the transitions from the start state, which is not a state of the model.
+	public static final int START_STATE_ID = -1;
+
+	private int stateId;
+	private byte parameterType;
+	private int secondId;
+
+	static {
+		WritableComparator.define(EMRecordKey.class, new Comparator());
+	}
+
+	public EMRecordKey() {}
+
+	public EMRecordKey(int stateId, char parameterType, int secondId) {
+		set(stateId, parameterType, secondId);
+	}
+
+	public void set(int stateId, char parameterType, int secondId) {
+		this.stateId = stateId;
+		this.parameterType = (byte) parameterType;
+		this.secondId = secondId;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		stateId = WritableUtils.readVInt(in);
+		parameterType = in.readByte();
+		secondId = WritableUtils.readVInt(in);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, stateId);
+		out.writeByte(parameterType);
+		WritableUtils.writeVInt(out, secondId);
+	}
+
+	/**
+	 * Compares the serialized keys, in the same order as Comparator.
+	 */
+	@Override
+	public int compareTo(EMRecordKey other) {
+		try {
+			DataOutputBuffer buffer = new DataOutputBuffer();
+			write(buffer);
+			int length = buffer.getLength();
+			other.write(buffer);
+
+			return WritableComparator.compareBytes(buffer.getData(), 0, length,
+					buffer.getData(), length, buffer.getLength() - length);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof EMRecordKey)) {
+			return false;
+		}
+
+		EMRecordKey other = (EMRecordKey) obj;
+		return stateId == other.stateId && parameterType == other.parameterType && secondId == other.secondId;
+	}
+
+	@Override
+	public int hashCode() {
+		return (stateId * 31 + parameterType) * 31 + secondId;
+	}
+
+	public int getStateId() {
+		return stateId;
+	}
+
+	public char getParameterType() {
+		return (char) parameterType;
+	}
+
+	public int getSecondId() {
+		return secondId;
+	}
+
+	public String toString() {
+		return stateId + " " + getParameterType() + " " + secondId;
+	}
+
+	/**
+	 * Sorts keys on their serialized bytes.
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(EMRecordKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			return compareBytes(b1, s1, l1, b2, s2, l2);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * An observation sequence as the token ids of a Vocabulary, as written by CorpusEncoder. Tokens that
+ * are not in the vocabulary have the id HmmModel.UNKNOWN_ID. Serialized as the number of tokens
+ * followed by the ids, all as vints.
+ *
+ * The id array is reused when Hadoop deserializes one record after the other into the same object,
+ * and may be longer than the sequence.
+ */
+public class EncodedObservationSequence implements Writable {
+
+	private int[] tokenIds = new int[0];
+	private int length = 0;
+
+	public EncodedObservationSequence() {}
+
+	/**
+	 * Sets the sequence to the first length ids of the given array, which is not copied.
+	 */
+	public void set(int[] tokenIds, int length) {
+		this.tokenIds = tokenIds;
+		this.length = length;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		length = WritableUtils.readVInt(in);
+		if (tokenIds.length < length) {
+			tokenIds = new int[Math.max(length, tokenIds.length * 2)];
+		}
+
+		for (int i = 0; i < length; i++) {
+			tokenIds[i] = WritableUtils.readVInt(in);
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, length);
+		for (int i = 0; i < length; i++) {
+			WritableUtils.writeVInt(out, tokenIds[i]);
+		}
+	}
+
+	/**
+	 * Returns the token ids. Only the first getLength() of them belong to the sequence.
+	 */
+	public int[] getTokenIds() {
+		return tokenIds;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public String toString() {
+		return Arrays.toString(Arrays.copyOf(tokenIds, length));
+	}
+}
@@ -1,105 +1,289 @@
 package edu.dartmouth.hmmem;
 
 import java.io.IOException;
-import java.net.URI;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 
+/**
+ * Mapper of the EM job, which runs the E-step of its split under the model of the previous iteration
+ * and outputs the expected counts of the split.
+ *
+ * If OnlineEM.ONLINE_BATCH_SIZE_KEY is set, the mapper instead runs stepwise online EM over its split,
+ * starting from the model of the previous iteration and updating its own copy of it after each
+ * mini-batch, and outputs the sufficient statistics of the split once it is done. The statistics of
+ * every split are on the scale of the counts of a single mini-batch, so the next model is about the
+ * average of the models of the splits. The step sizes go on decreasing from those of the earlier
+ * iterations (see makeOnlineEM()). The whole table of statistics is output, so mini-batches should
+ * be much smaller than a split for this to pay off.
+ *
+ * If IncrementalEStep.INCREMENTAL_FRACTION_KEY is set, the mapper only runs the forward-backward pass on
+ * the blocks of its split that IncrementalEStep selects, and outputs the stored counts of the others.
+ */
 public class ExpectationMapper extends MapReduceBase implements
-		Mapper<LongWritable, Text, Text, EMModelParameter> {
+		Mapper<LongWritable, Writable, EMRecordKey, DoubleWritable> {
 
 	private static final Logger LOGGER = Logger.getLogger(ExpectationMapper.class.toString());
 
 	public static final String BUCKET_URI_KEY = "bucket_uri";
 	public static final String MODEL_PARAMETERS_DIR_PATH_KEY = "model_parameters_file_path";
 	public static final String START_STATE_KEY = "start_state";
+	// The EM iteration that output the model parameters.
+	public static final String MODEL_ITERATION_KEY = "model_iteration";
+	// In online mode, the number of mini-batches per split of the previous iteration, from its
+	// OnlineCounter, so that the step sizes go on decreasing from those of the earlier passes.
+	public static final String ONLINE_BATCHES_PER_SPLIT_KEY = "online_batches_per_split";
+	// Arithmetic of the forward-backward pass, ForwardBackward.MODE_LOG (default) or ForwardBackward.MODE_SCALED.
+	public static final String E_STEP_MODE_KEY = "e_step_mode";
+	// Observation sequences at least this long are run with a checkpointed forward-backward pass.
+	public static final String CHECKPOINT_MIN_LENGTH_KEY = "checkpoint_min_length";
+	// If set, the forward pass prunes the states more than this margin (in log base 2) below the best
+	// state of their column, making the E-step approximate.
+	public static final String BEAM_MARGIN_KEY = "beam_margin";
+	// Whether the input is the text corpus (INPUT_MODE_TEXT, default) or the corpus encoded once by
+	// CorpusEncoder (INPUT_MODE_ENCODED), whose token ids are those of the vocabulary at VOCABULARY_PATH_KEY.
+	public static final String INPUT_MODE_KEY = "input_mode";
+	public static final String INPUT_MODE_TEXT = "text";
+	public static final String INPUT_MODE_ENCODED = "encoded";
+	public static final String VOCABULARY_PATH_KEY = "vocabulary_path";
+	// The counts of the split are flushed to the output once they hold this many emission rows.
+	public static final String COMBINE_MAX_EMISSION_ROWS_KEY = "combine_max_emission_rows";
+	public static final int DEFAULT_COMBINE_MAX_EMISSION_ROWS = 100000;
 
-	private final Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
-	private final Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
-	
-	private Set<String> stateSet;
-	private String startState;
+	/**
+	 * Counters of what the beam pruned. PRUNED_MASS_PPM is the sum over all observations of the fraction
+	 * of the forward column mass that was pruned, in millionths.
+	 */
+	public static enum BeamCounter {
+		PRUNED_STATES,
+		PRUNED_MASS_PPM
+	}
+
+	/**
+	 * Counters of the total log alpha (log base 2 likelihood) of the observation sequences, which the
+	 * driver reads from the finished job with getTotalLogAlpha(). Counters only hold longs, so the total
+	 * is split into its integer part and its fractional part in units of LOG_ALPHA_FRACTION_UNIT, which
+	 * both sum exactly across mappers. SEQUENCES counts the sequences with a non-zero alpha.
+	 */
+	public static enum LogAlphaCounter {
+		INTEGER,
+		FRACTION,
+		SEQUENCES
+	}
+
+	public static final double LOG_ALPHA_FRACTION_UNIT = 1e-12;
+
+	/**
+	 * Counters of the online mode: the mini-batches of all splits, and the splits with at least one
+	 * mini-batch. The driver reads their ratio with getOnlineBatchesPerSplit().
+	 */
+	public static enum OnlineCounter {
+		BATCHES,
+		SPLITS
+	}
+
+	private HmmModel model;
+
+	// The counts of the observation sequences of the split since the last flush, and where to flush them.
+	private ExpectedCounts counts;
+	private int numCombinedSequences = 0;
+	private int maxEmissionRows;
+	private OutputCollector<EMRecordKey, DoubleWritable> output;
+	private Reporter reporter;
+
+	// Stepwise online EM over the split, or null for batch EM.
+	private OnlineEM online;
+	private int onlineBatchSize;
+	private int numOnlineBatches = 0;
+
+	// The incremental E-step of the split, or null for the full E-step, with the counts of the current
+	// block of records.
+	private IncrementalEStep incremental;
+	private int incrementalBlockSize;
+	private long numRecords = 0;
+	private int block = -1;
+	private ExpectedCounts blockCounts;
+	private int numBlockSequences = 0;
+
+	// Reused from one map() call to the next.
+	private JobConf job;
+	private ForwardBackward forwardBackward;
+	private ByteTokenizer tokenizer;
 
 	private boolean failure = false;
 	private String failureString;
 
 	@Override
-	public void map(LongWritable key, Text value,
-			OutputCollector<Text, EMModelParameter> output, Reporter reporter)
+	public void map(LongWritable key, Writable value,
+			OutputCollector<EMRecordKey, DoubleWritable> output, Reporter reporter)
 					throws IOException {
-		LOGGER.log(Level.INFO, "ExpectationMapper");
-
-		System.err.println("~~~~~~~~~~~~~ExpectationMapper~~~~~~~~~~~~~");
-
 		if (failure) {
 			throw new IOException(failureString);
 		}
+
+		this.output = output;
+		this.reporter = reporter;
+
+		// Skip the records of the blocks whose stored counts are reused.
+		if (incremental != null) {
+			int recordBlock = (int) (numRecords++ / incrementalBlockSize);
+			if (recordBlock != block) {
+				finishBlock();
+				block = recordBlock;
+			}
+
+			if (!incremental.isRecomputed(block)) {
+				return;
+			}
+		}
 		
-		// Create the observation sequence list from the input line.
-		String observationSequenceString = value.toString();
-		String[] observationSequenceArray = observationSequenceString.trim().split("\\s+");
+		// Get the token ids of the observation sequence, either as encoded once by CorpusEncoder, or from
+		// the input line.
+		int[] encodedObservationSequence;
+		int numObs;
+		if (value instanceof EncodedObservationSequence) {
+			EncodedObservationSequence encoded = (EncodedObservationSequence) value;
+			encodedObservationSequence = encoded.getTokenIds();
+			numObs = encoded.getLength();
+		} else {
+			numObs = tokenizer.tokenize((Text) value);
+			encodedObservationSequence = tokenizer.getTokenIds();
+		}
+
+		if (numObs == 0) {
+			return;
+		}
+
+		// Calculate the forward matrix for the observation sequence.
+		double logAlpha = forwardBackward.calculateForward(encodedObservationSequence, numObs);
+		reportPruning(reporter);
+		if (logAlpha == Double.NEGATIVE_INFINITY) {
+			return; // The model cannot generate the sequence, so it contributes no counts.
+		}
 		
-		List<String> observationSequence = new ArrayList<String>();
-		for (String obs : observationSequenceArray) {
-			String trimmedObs = obs.trim();
-			if (trimmedObs.length() != 0) {
-				observationSequence.add(trimmedObs);
+		// Add the transition and emission counts for the observation sequence under the given model
+		// to those of the split in the backward pass. They are output in close(), or once they get too big.
+		if (incremental != null) {
+			blockCounts.addLogAlpha(logAlpha);
+			forwardBackward.accumulateCounts(logAlpha, blockCounts);
+			numBlockSequences++;
+			return;
+		}
+
+		counts.addLogAlpha(logAlpha);
+		forwardBackward.accumulateCounts(logAlpha, counts);
+		numCombinedSequences++;
+
+		if (online != null) {
+			if (numCombinedSequences >= onlineBatchSize) {
+				updateOnlineModel();
 			}
+		} else if (counts.getNumTouchedTokens() >= maxEmissionRows) {
+			flushCounts();
 		}
+	}
 
-		if (observationSequence.size() == 0) {
+	/**
+	 * Runs after the last map. Outputs the counts of the split that have not been flushed yet, or in
+	 * online mode, the sufficient statistics of the split after its last mini-batch.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (incremental != null) {
+			finishBlock();
+			incremental.close();
+		}
+
+		if (online == null) {
+			flushCounts();
 			return;
 		}
 
-		// Calculate the forward and backward matrices for the observation sequence.
-		Map<String, Double[]> forwardMatrix =
-				calculateForwardMatrix(observationSequence, transLogProbMap, emisLogProbMap, stateSet, startState);
-		Map<String, Double[]> backwardMatrix =
-				calculateBackwardMatrix(observationSequence, transLogProbMap, emisLogProbMap, stateSet, startState);
-		
-		// Calculate the transition and emission counts for the observation sequence under the given model.
-		Map<StringPair, Double> transLogCounts =
-				calculateLogTransitionCounts(forwardMatrix, backwardMatrix, transLogProbMap, emisLogProbMap, observationSequence, stateSet, startState);
-		Map<StringPair, Double> emisLogCounts =
-				calculateLogEmissionCounts(forwardMatrix, backwardMatrix, observationSequence, stateSet);
-
-		// Output the transition and emission counts.
-		outputTransitionLogCounts(transLogCounts, output);
-		outputEmissionLogCounts(emisLogCounts, output);
-		
-		// Output the total alpha for the observation sequence under the given model.
-		Double logAlpha = getLogAlpha(forwardMatrix);
-		if (logAlpha != null) {
-			EMModelParameter alpha = EMModelParameter.makeAlphaObject(logAlpha);
-			System.out.println("Log alpha: " + logAlpha);
-			System.out.println("Alpha object: " + alpha);
-			output.collect(EMModelParameter.ALPHA_DUMMY_TEXT, alpha);
+		if (numCombinedSequences > 0) {
+			updateOnlineModel();
+		}
+		if (numOnlineBatches > 0) {
+			outputTransitionLogCounts(online.getStats(), output);
+			outputEmissionLogCounts(online.getStats(), output);
+			reporter.incrCounter(OnlineCounter.SPLITS, 1);
+		}
+	}
+
+	/**
+	 * Adds the counts of the current block of the incremental E-step to those of the split, either the
+	 * ones just computed, which are stored for the next iteration, or the stored ones.
+	 */
+	private void finishBlock() throws IOException {
+		if (block == -1) {
+			return;
 		}
+
+		if (incremental.isRecomputed(block)) {
+			incremental.putRecomputedBlock(block, blockCounts, numBlockSequences);
+			counts.add(blockCounts);
+			numCombinedSequences += numBlockSequences;
+
+			blockCounts.clear();
+			numBlockSequences = 0;
+		} else {
+			numCombinedSequences += incremental.addStoredBlock(block, counts);
+		}
+
+		if (counts.getNumTouchedTokens() >= maxEmissionRows) {
+			flushCounts();
+		}
+	}
+
+	/**
+	 * Updates the online model with the counts of the mini-batch, adds their total alpha to the counters,
+	 * and starts the next mini-batch under the new model.
+	 */
+	private void updateOnlineModel() {
+		online.update(counts);
+		reportLogAlpha(reporter, counts.getTotalLogAlpha(), numCombinedSequences);
+		reporter.incrCounter(OnlineCounter.BATCHES, 1);
+		numOnlineBatches++;
+
+		counts.clear();
+		numCombinedSequences = 0;
+		forwardBackward = makeForwardBackward(online.getModel(), job);
+	}
+
+	/**
+	 * Outputs the combined transition and emission counts of the observation sequences since the last
+	 * flush, adds their total alpha to the counters, and starts over with empty counts. The emission rows are dropped
+	 * along with the old counts, so the memory held between flushes is bounded by maxEmissionRows.
+	 */
+	private void flushCounts() throws IOException {
+		if (numCombinedSequences == 0) {
+			return;
+		}
+
+		outputTransitionLogCounts(counts, output);
+		outputEmissionLogCounts(counts, output);
+
+		// The total alpha of the sequences is the product of their alphas.
+		reportLogAlpha(reporter, counts.getTotalLogAlpha(), numCombinedSequences);
+
+		counts = new ExpectedCounts(model);
+		numCombinedSequences = 0;
 	}
 
 	/**
 	 * Runs before each map. Obtains the path to the model parameters file from the job conf. Then
-	 * parses the file and fills in the transition and emission log probabilities maps.
+	 * parses the file and compiles the transition and emission log probabilities into the model, unless
+	 * a previous task in the same JVM already did.
 	 */
 	@Override
 	public void configure(JobConf job) {
@@ -108,22 +292,27 @@ public class ExpectationMapper extends MapReduceBase implements
 
 			System.err.println("~~~~~~~~~~~~~Configure~~~~~~~~~~~~~");
 
-			URI bucketURI = new URI(job.get(BUCKET_URI_KEY));
-
-			FileSystem fs;
-			fs = NativeS3FileSystem.get(bucketURI, new Configuration());
+			// The model is compiled once, so that map() does no hashing per trellis cell.
+			model = ModelFiles.getCompiledModel(job, job.get(BUCKET_URI_KEY), job.get(MODEL_PARAMETERS_DIR_PATH_KEY),
+					job.get(START_STATE_KEY));
 
-			Path modelParametersDirPath = new Path(job.get(MODEL_PARAMETERS_DIR_PATH_KEY));
-			FileStatus[] modelParameterFileStatuses;
-			modelParameterFileStatuses = fs.listStatus(modelParametersDirPath);
+			this.job = job;
+			counts = new ExpectedCounts(model);
+			tokenizer = new ByteTokenizer(model.getTokenIndex());
+			maxEmissionRows = job.getInt(COMBINE_MAX_EMISSION_ROWS_KEY, DEFAULT_COMBINE_MAX_EMISSION_ROWS);
+			forwardBackward = makeForwardBackward(model, job);
 
-			for (FileStatus modelParameterFileStatus : modelParameterFileStatuses) {
-				LOGGER.log(Level.INFO, "Parsing model parameters file: " + modelParameterFileStatus.getPath());
+			onlineBatchSize = job.getInt(OnlineEM.ONLINE_BATCH_SIZE_KEY, 0);
+			online = makeOnlineEM(model, job);
 
-				if (!modelParameterFileStatus.getPath().getName().equals(MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME)) {
-					FSDataInputStream modelParametersIn = fs.open(modelParameterFileStatus.getPath());
-					StaticUtil.readModelParametersFile(modelParametersIn, transLogProbMap, emisLogProbMap);
+			if (job.get(IncrementalEStep.INCREMENTAL_FRACTION_KEY) != null) {
+				if (online != null) {
+					throw new Exception("The incremental E-step cannot be combined with online EM.");
 				}
+
+				incremental = new IncrementalEStep(job, model);
+				incrementalBlockSize = job.getInt(IncrementalEStep.BLOCK_SIZE_KEY, IncrementalEStep.DEFAULT_BLOCK_SIZE);
+				blockCounts = new ExpectedCounts(model);
 			}
 
 			LOGGER.log(Level.INFO, "End of configure()");
@@ -133,243 +322,135 @@ public class ExpectationMapper extends MapReduceBase implements
 
 			LOGGER.log(Level.SEVERE, failureString);
 		}
-		
-		// Set stateSet and startState.
-		startState = job.get(START_STATE_KEY);
-		stateSet = StaticUtil.makeStateSetFromTransDict(transLogProbMap);
 	}
-	
+
 	/**
-	 * Calculates the forward matrix given an observation sequence and model parameters.
-	 * Returns a dictionary mapping each state X to an array of log probabilities, where each
-	 * log probability at index i corresponds to the sum over all possible previous taggings
-	 * of the probability of observation i given this state X.
+	 * Makes a forward-backward pass of the given model configured by the options of the given conf.
 	 */
-	private static Map<String, Double[]> calculateForwardMatrix(List<String> observationSequence,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, Set<String> stateSet, String startState) {
-		int numObs = observationSequence.size();
-		if (numObs == 0) {
-			return null;
-			// TODO: What happens next?
+	static ForwardBackward makeForwardBackward(HmmModel model, Configuration conf) {
+		ForwardBackward forwardBackward = new ForwardBackward(model, conf.get(E_STEP_MODE_KEY, ForwardBackward.MODE_LOG),
+				conf.getInt(CHECKPOINT_MIN_LENGTH_KEY, ForwardBackward.DEFAULT_CHECKPOINT_MIN_LENGTH));
+		if (conf.get(BEAM_MARGIN_KEY) != null) {
+			forwardBackward.setBeamMargin(Double.parseDouble(conf.get(BEAM_MARGIN_KEY)));
 		}
-		
-		Map<String, Double[]> forwardMatrix = new HashMap<String, Double[]>();
-		
-		for (String state : stateSet) {
-			forwardMatrix.put(state, new Double[numObs]);
-		}
-		
-		// Begin by filling out the matrix for the first observation. This requires
-		// a special case because we start out at startState with a probability of 1.0.
-		for (String state : stateSet) {
-			// P(state|#) * P(firstObservation|state)
-			StringPair transStringPair = new StringPair(startState, state);
-			Double logProbStateGivenStart = transLogProbDict.get(transStringPair);
-			
-			StringPair emisStringPair = new StringPair(state, observationSequence.get(0));
-			Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-			
-			Double logProb = StaticUtil.calcLogProductOfLogs(logProbStateGivenStart, logProbObsGivenState);
-			forwardMatrix.get(state)[0] = logProb;
-		}
-		
-		// Now complete the rest of the matrix.
-		for (int i = 1; i < numObs; i++) {
-			String obs = observationSequence.get(i);
-			
-			for (String state : stateSet) {
-				Double totalLogProb = null; // Probability starts out as 0 and accumulates from all previous states.
-				
-				// The emission probability is the same given one state.
-				StringPair emisStringPair = new StringPair(state, obs);
-				Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-				
-				for (String prevState : stateSet) {
-					// P(state|prevState) * P(obs|state) * Forward(i-1, prevState)
-					StringPair transStringPair = new StringPair(prevState, state);
-					Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
-					
-					Double prevObsPrevStateForwardLogProb = forwardMatrix.get(prevState)[i-1];
-					
-					Double newLogProb = StaticUtil.calcLogProductOfLogs(StaticUtil.calcLogProductOfLogs(logProbStateGivenPrevState, logProbObsGivenState), prevObsPrevStateForwardLogProb);
-					totalLogProb = StaticUtil.calcLogSumOfLogs(totalLogProb, newLogProb);
-				}
 
-				forwardMatrix.get(state)[i] = totalLogProb;
-			}
-		}
-		
-		return forwardMatrix;
+		return forwardBackward;
 	}
 	
 	/**
-	 * Calculates the backward matrix given an observation sequence and model parameters.
-	 * Returns a dictionary mapping each state X to an array of log probabilities, where each
-	 * log probability at index i corresponds to the sum over all possible subsequent taggings
-	 * given this state X, not including the observation i.
+	 * Returns the stepwise online EM of a split in the given job, or null if the job runs batch EM. The
+	 * splits are the same in every iteration, so the split is taken to have made the number of updates
+	 * per split of the previous iteration in each of the earlier passes.
 	 */
-	private static Map<String, Double[]> calculateBackwardMatrix(List<String> observationSequence,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, Set<String> stateSet, String startState) {
-		int numObs = observationSequence.size();
-		if (numObs == 0) {
+	public static OnlineEM makeOnlineEM(HmmModel model, Configuration conf) {
+		if (conf.getInt(OnlineEM.ONLINE_BATCH_SIZE_KEY, 0) <= 0) {
 			return null;
-			// TODO: What happens next?
-		}
-		
-		Map<String, Double[]> backwardMatrix = new HashMap<String, Double[]>();
-		
-		for (String state : stateSet) {
-			backwardMatrix.put(state, new Double[numObs]);
 		}
-		
-		// Begin by filling out the matrix for the last observation. This requires
-		// a special case because we start out with a subsequent taggings probability of 1.0.
-		for (String state : stateSet) {
-			backwardMatrix.get(state)[numObs-1] = Math.log(1.0) / Math.log(2); 
-		}
-		
-		// Now complete the rest of the matrix.
-		for (int i = numObs - 2; i >= 0; i--) {
-			String nextObs = observationSequence.get(i+1);
-			
-			for (String state : stateSet) {
-				Double totalLogProb = null; // Probability starts out as 0 and accumulates from all next states.
-				
-				for (String nextState : stateSet) {
-					// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState)
-					StringPair transStringPair = new StringPair(state, nextState);
-					Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
-					
-					StringPair emisStringPair = new StringPair(nextState, nextObs);
-					Double logProbNextObsGivenNextState = emisLogProbDict.get(emisStringPair);
-					
-					Double nextObsNextStateBackwardLogProb = backwardMatrix.get(nextState)[i+1];
-					
-					Double newLogProb = StaticUtil.calcLogProductOfLogs(StaticUtil.calcLogProductOfLogs(logProbStateGivenPrevState, logProbNextObsGivenNextState), nextObsNextStateBackwardLogProb);
-					totalLogProb = StaticUtil.calcLogSumOfLogs(totalLogProb, newLogProb);
-				}
 
-				backwardMatrix.get(state)[i] = totalLogProb;
-			}
-		}
-		
-		return backwardMatrix;
+		int numPriorUpdates = conf.getInt(MODEL_ITERATION_KEY, 0) * conf.getInt(ONLINE_BATCHES_PER_SPLIT_KEY, 0);
+		return new OnlineEM(model, conf.getFloat(OnlineEM.STEP_EXPONENT_KEY, OnlineEM.DEFAULT_STEP_EXPONENT), numPriorUpdates);
 	}
-	
+
 	/**
-	 * Calculates the transition counts for an observation sequence.
+	 * Adds what the beam pruned from the last observation sequence to the job counters.
 	 */
-	private static Map<StringPair, Double> calculateLogTransitionCounts(Map<String, Double[]> forwardMatrix, Map<String, Double[]> backwardMatrix,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, List<String> observationSequence,
-			Set<String> stateSet, String startState) {
-		Map<StringPair, Double> logTransCounts = new HashMap<StringPair, Double>();
-		
-		int numObs = observationSequence.size();
-		
-		// Calculate the transition counts from #.
-		for (String state : stateSet) {
-			Double forwardLogProb = forwardMatrix.get(state)[0];
-			Double backwardLogProb = backwardMatrix.get(state)[0];
-			
-			Double logProbStateGivenStart = StaticUtil.calcLogProductOfLogs(forwardLogProb, backwardLogProb);
-			StringPair transStringPair = new StringPair(startState, state);
-			logTransCounts.put(transStringPair, logProbStateGivenStart);
+	private void reportPruning(Reporter reporter) {
+		if (forwardBackward.getNumPrunedStates() > 0) {
+			reporter.incrCounter(BeamCounter.PRUNED_STATES, forwardBackward.getNumPrunedStates());
+			reporter.incrCounter(BeamCounter.PRUNED_MASS_PPM, Math.round(forwardBackward.getPrunedMass() * 1e6));
 		}
-		
-		// Calculate transition counts for the rest of the transitions.
-		for (int i = 0; i < numObs - 1; i++) {
-			String nextObs = observationSequence.get(i+1);
-			
-			for (String fromState : stateSet) {
-				Double forwardLogProb = forwardMatrix.get(fromState)[i];
-				
-				for (String toState : stateSet) {
-					Double backwardLogProb = backwardMatrix.get(toState)[i+1];
-					
-					StringPair transStringPair = new StringPair(fromState, toState);
-					Double transLogProb = transLogProbDict.get(transStringPair);
-					
-					StringPair emisStringPair = new StringPair(toState, nextObs);
-					Double emisLogProb = emisLogProbDict.get(emisStringPair);
-					
-					Double logProbToStateGivenFromState = StaticUtil.calcLogProductOfLogs(StaticUtil.calcLogProductOfLogs(StaticUtil.calcLogProductOfLogs(forwardLogProb, transLogProb), emisLogProb), backwardLogProb);					
-					Double prevLogTransCount = logTransCounts.get(transStringPair);
-					logTransCounts.put(transStringPair, StaticUtil.calcLogSumOfLogs(prevLogTransCount, logProbToStateGivenFromState));
-				}
-			}
-		}
-		
-		return logTransCounts;
 	}
-	
+
 	/**
-	 * Calculates the emission counts for an observation sequence.
+	 * Adds the given log alpha of the given number of observation sequences to the job counters.
 	 */
-	private static Map<StringPair, Double> calculateLogEmissionCounts(Map<String, Double[]> forwardMatrix, Map<String, Double[]> backwardMatrix,
-			List<String> observationSequence, Set<String> stateSet) {
-		Map<StringPair, Double> logEmisCounts = new HashMap<StringPair, Double>();
-		
-		int numObs = observationSequence.size();
-		for (int i = 0; i < numObs; i++) {
-			String obs = observationSequence.get(i);
-			
-			for (String state : stateSet) {
-				Double forwardLogProb = forwardMatrix.get(state)[i];
-				Double backwardLogProb = backwardMatrix.get(state)[i];
-				
-				Double logProbObsGivenState = StaticUtil.calcLogProductOfLogs(forwardLogProb, backwardLogProb);
-				StringPair emisStringPair = new StringPair(state, obs);
-				Double prevLogEmisCount = logEmisCounts.get(emisStringPair);
-				logEmisCounts.put(emisStringPair, StaticUtil.calcLogSumOfLogs(prevLogEmisCount, logProbObsGivenState));
-			}
+	private static void reportLogAlpha(Reporter reporter, double logAlpha, int numSequences) {
+		double integerPart = Math.floor(logAlpha);
+
+		reporter.incrCounter(LogAlphaCounter.INTEGER, (long) integerPart);
+		reporter.incrCounter(LogAlphaCounter.FRACTION, Math.round((logAlpha - integerPart) / LOG_ALPHA_FRACTION_UNIT));
+		reporter.incrCounter(LogAlphaCounter.SEQUENCES, numSequences);
+	}
+
+	/**
+	 * Returns the total log alpha of all the observation sequences of a finished EM job from its
+	 * counters, or log(0) if the model could not generate any of them.
+	 */
+	public static double getTotalLogAlpha(Counters counters) {
+		if (counters.getCounter(LogAlphaCounter.SEQUENCES) == 0) {
+			return Double.NEGATIVE_INFINITY;
 		}
-		
-		return logEmisCounts;
+
+		return counters.getCounter(LogAlphaCounter.INTEGER)
+				+ counters.getCounter(LogAlphaCounter.FRACTION) * LOG_ALPHA_FRACTION_UNIT;
 	}
-	
+
 	/**
-	 * Returns the log alpha for the observation sequence under the given model, or null if alpha == 0.
+	 * Returns the average number of mini-batches per split of a finished online EM job from its
+	 * counters, rounded to the nearest integer, or 0 if it ran batch EM.
 	 */
-	private static Double getLogAlpha(Map<String, Double[]> forwardMatrix) {
-		Double logAlpha = null;
-		
-		for (Entry<String, Double[]> entry : forwardMatrix.entrySet()) {
-			Double[] logProbArray = entry.getValue();
-			Double lastLogProb = entry.getValue()[logProbArray.length - 1];
-			
-			logAlpha = StaticUtil.calcLogSumOfLogs(logAlpha, lastLogProb);
+	public static int getOnlineBatchesPerSplit(Counters counters) {
+		long numSplits = counters.getCounter(OnlineCounter.SPLITS);
+		if (numSplits == 0) {
+			return 0;
 		}
-		
-		return logAlpha;
+
+		return (int) Math.round((double) counters.getCounter(OnlineCounter.BATCHES) / numSplits);
 	}
-	
+
 	/**
-	 * Outputs the transition log counts as EMModelParameters.
+	 * Outputs the transition log counts (including those from the start state), keyed by model ids.
 	 */
-	private static void outputTransitionLogCounts(Map<StringPair, Double> transLogCounts, OutputCollector<Text, EMModelParameter> output) throws IOException {
-		outputLogCounts(transLogCounts, output, EMModelParameter.PARAMETER_TYPE_TRANSITION);
+	private static void outputTransitionLogCounts(ExpectedCounts counts, OutputCollector<EMRecordKey, DoubleWritable> output) throws IOException {
+		int numStates = counts.getModel().getNumStates();
+
+		EMRecordKey key = new EMRecordKey();
+		DoubleWritable logCount = new DoubleWritable();
+
+		double[] startCounts = counts.getStartCounts();
+		for (int toState = 0; toState < numStates; toState++) {
+			key.set(EMRecordKey.START_STATE_ID, EMModelParameter.PARAMETER_TYPE_TRANSITION, toState);
+			outputLogCount(key, startCounts[toState], logCount, output);
+		}
+
+		double[][] transCounts = counts.getTransCounts();
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			for (int toState = 0; toState < numStates; toState++) {
+				key.set(fromState, EMModelParameter.PARAMETER_TYPE_TRANSITION, toState);
+				outputLogCount(key, transCounts[fromState][toState], logCount, output);
+			}
+		}
 	}
 	
 	/**
-	 * Outputs the emission log counts as EMModelParameters.
+	 * Outputs the emission log counts, keyed by model ids.
 	 */
-	private static void outputEmissionLogCounts(Map<StringPair, Double> emisLogCounts, OutputCollector<Text, EMModelParameter> output) throws IOException {
-		outputLogCounts(emisLogCounts, output, EMModelParameter.PARAMETER_TYPE_EMISSION);
+	private static void outputEmissionLogCounts(ExpectedCounts counts, OutputCollector<EMRecordKey, DoubleWritable> output) throws IOException {
+		int numStates = counts.getModel().getNumStates();
+
+		EMRecordKey key = new EMRecordKey();
+		DoubleWritable logCount = new DoubleWritable();
+
+		for (int i = 0; i < counts.getNumTouchedTokens(); i++) {
+			int token = counts.getTouchedToken(i);
+			double[] emisCounts = counts.getEmissionCounts(token);
+
+			for (int state = 0; state < numStates; state++) {
+				key.set(state, EMModelParameter.PARAMETER_TYPE_EMISSION, token);
+				outputLogCount(key, emisCounts[state], logCount, output);
+			}
+		}
 	}
 	
 	/**
-	 * Outputs the log counts as EMModelParameters.
+	 * Outputs a single count as its log. The collector serializes the key and value right away, so
+	 * both are reused from one count to the next.
 	 */
-	private static void outputLogCounts(Map<StringPair, Double> logCounts, OutputCollector<Text, EMModelParameter> output,
-			char parameterType) throws IOException {
-		for (Entry<StringPair, Double> entry : logCounts.entrySet()) {
-			if (entry.getValue() != null) { // Only output if prob > 0.
-				EMModelParameter param = new EMModelParameter(parameterType, new Text(entry.getKey().getX()), new Text(entry.getKey().getY()),
-						entry.getValue());
-				System.out.println("Log count: " + entry.getValue());
-				System.out.println("Param: " + param);
-				output.collect(param.getTransFromStateOrEmisState(), param);
-			}
+	private static void outputLogCount(EMRecordKey key, double count, DoubleWritable logCount,
+			OutputCollector<EMRecordKey, DoubleWritable> output) throws IOException {
+		if (count > 0) { // Only output if prob > 0.
+			logCount.set(Math.log(count) / StaticUtil.LOG_2);
+			output.collect(key, logCount);
 		}
 	}
 }
@@ -0,0 +1,237 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the expected transition and emission counts of observation sequences under a
+ * compiled HmmModel. Counts are posterior expectations (i.e. already divided by the alpha of their
+ * observation sequence) and are kept in linear space, since a posterior is at most 1.0 per position
+ * and so cannot underflow in a way that matters.
+ *
+ * Emission counts are stored in one row of state counts per token. Rows are allocated the first
+ * time their token is seen and are reused after clear(), so accumulating is allocation free once
+ * the vocabulary of the input has been seen.
+ */
+public class ExpectedCounts {
+
+	private final HmmModel model;
+
+	private final double[] startCounts;
+	private final double[][] transCounts;
+	private final double[][] emisCounts;
+
+	// Tokens with a non-cleared emission row, in order of first use.
+	private final boolean[] touched;
+	private int[] touchedTokens = new int[16];
+	private int numTouchedTokens = 0;
+
+	private double totalLogAlpha = 0.0;
+
+	public ExpectedCounts(HmmModel model) {
+		this.model = model;
+
+		int numStates = model.getNumStates();
+		startCounts = new double[numStates];
+		transCounts = new double[numStates][numStates];
+		emisCounts = new double[model.getNumTokens()][];
+		touched = new boolean[model.getNumTokens()];
+	}
+
+	public void addStartCount(int state, double count) {
+		startCounts[state] += count;
+	}
+
+	public void addTransitionCount(int fromState, int toState, double count) {
+		transCounts[fromState][toState] += count;
+	}
+
+	public void addEmissionCount(int token, int state, double count) {
+		getEmissionCountsForUpdate(token)[state] += count;
+	}
+
+	/**
+	 * Returns the row of emission counts for the given token, marking the token as touched.
+	 */
+	public double[] getEmissionCountsForUpdate(int token) {
+		double[] row = emisCounts[token];
+
+		if (row == null) {
+			row = new double[model.getNumStates()];
+			emisCounts[token] = row;
+		}
+
+		if (!touched[token]) {
+			touched[token] = true;
+			if (numTouchedTokens == touchedTokens.length) {
+				touchedTokens = Arrays.copyOf(touchedTokens, numTouchedTokens * 2);
+			}
+			touchedTokens[numTouchedTokens++] = token;
+		}
+
+		return row;
+	}
+
+	/**
+	 * Multiplies the alpha of the accumulated observation sequences by the given alpha.
+	 */
+	public void addLogAlpha(double logAlpha) {
+		totalLogAlpha += logAlpha;
+	}
+
+	/**
+	 * Adds the counts and the alpha of the given counts, which must be of the same model, or one with
+	 * the same states and tokens, to these.
+	 */
+	public void add(ExpectedCounts other) {
+		add(other, 1.0);
+	}
+
+	/**
+	 * Adds the counts of the given counts, which must be of the same model, or one with the same states
+	 * and tokens, times the given weight to these, along with their alpha.
+	 */
+	public void add(ExpectedCounts other, double weight) {
+		int numStates = model.getNumStates();
+
+		for (int state = 0; state < numStates; state++) {
+			startCounts[state] += weight * other.startCounts[state];
+		}
+
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			double[] row = transCounts[fromState];
+			double[] otherRow = other.transCounts[fromState];
+			for (int toState = 0; toState < numStates; toState++) {
+				row[toState] += weight * otherRow[toState];
+			}
+		}
+
+		for (int i = 0; i < other.numTouchedTokens; i++) {
+			int token = other.touchedTokens[i];
+			double[] row = getEmissionCountsForUpdate(token);
+			double[] otherRow = other.emisCounts[token];
+			for (int state = 0; state < numStates; state++) {
+				row[state] += weight * otherRow[state];
+			}
+		}
+
+		totalLogAlpha += other.totalLogAlpha;
+	}
+
+	/**
+	 * Multiplies all counts by the given factor.
+	 */
+	public void scale(double factor) {
+		for (int state = 0; state < startCounts.length; state++) {
+			startCounts[state] *= factor;
+		}
+
+		for (double[] row : transCounts) {
+			for (int toState = 0; toState < row.length; toState++) {
+				row[toState] *= factor;
+			}
+		}
+
+		for (int i = 0; i < numTouchedTokens; i++) {
+			double[] row = emisCounts[touchedTokens[i]];
+			for (int state = 0; state < row.length; state++) {
+				row[state] *= factor;
+			}
+		}
+	}
+
+	/**
+	 * Resets all counts to 0, keeping the allocated emission rows.
+	 */
+	public void clear() {
+		Arrays.fill(startCounts, 0.0);
+		for (double[] row : transCounts) {
+			Arrays.fill(row, 0.0);
+		}
+
+		for (int i = 0; i < numTouchedTokens; i++) {
+			Arrays.fill(emisCounts[touchedTokens[i]], 0.0);
+			touched[touchedTokens[i]] = false;
+		}
+		numTouchedTokens = 0;
+
+		totalLogAlpha = 0.0;
+	}
+
+	public HmmModel getModel() {
+		return model;
+	}
+
+	public double[] getStartCounts() {
+		return startCounts;
+	}
+
+	public double[][] getTransCounts() {
+		return transCounts;
+	}
+
+	public int getNumTouchedTokens() {
+		return numTouchedTokens;
+	}
+
+	public int getTouchedToken(int i) {
+		return touchedTokens[i];
+	}
+
+	/**
+	 * Returns the emission counts of the given token, indexed by state, or null if the token has
+	 * not been seen since the last clear().
+	 */
+	public double[] getEmissionCounts(int token) {
+		return touched[token] ? emisCounts[token] : null;
+	}
+
+	public double getTotalLogAlpha() {
+		return totalLogAlpha;
+	}
+
+	/**
+	 * Returns the non-zero transition counts (including those from the start state) as a map from
+	 * state pairs to log counts.
+	 */
+	public Map<StringPair, Double> makeTransitionLogCountMap() {
+		Map<StringPair, Double> logCountMap = new HashMap<StringPair, Double>();
+		int numStates = model.getNumStates();
+
+		for (int toState = 0; toState < numStates; toState++) {
+			putLogCount(logCountMap, model.getStartState(), model.getState(toState), startCounts[toState]);
+		}
+
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			for (int toState = 0; toState < numStates; toState++) {
+				putLogCount(logCountMap, model.getState(fromState), model.getState(toState), transCounts[fromState][toState]);
+			}
+		}
+
+		return logCountMap;
+	}
+
+	/**
+	 * Returns the non-zero emission counts as a map from state-token pairs to log counts.
+	 */
+	public Map<StringPair, Double> makeEmissionLogCountMap() {
+		Map<StringPair, Double> logCountMap = new HashMap<StringPair, Double>();
+		int numStates = model.getNumStates();
+
+		for (int i = 0; i < numTouchedTokens; i++) {
+			int token = touchedTokens[i];
+			for (int state = 0; state < numStates; state++) {
+				putLogCount(logCountMap, model.getState(state), model.getToken(token), emisCounts[token][state]);
+			}
+		}
+
+		return logCountMap;
+	}
+
+	private static void putLogCount(Map<StringPair, Double> logCountMap, String x, String y, double count) {
+		if (count > 0) {
+			logCountMap.put(new StringPair(x, y), Math.log(count) / StaticUtil.LOG_2);
+		}
+	}
+}
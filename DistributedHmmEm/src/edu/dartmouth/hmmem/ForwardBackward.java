@@ -0,0 +1,573 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+
+/**
+ * Forward-backward kernels of the E-step, run on a compiled HmmModel and an observation sequence
+ * of token ids. Two arithmetic modes are supported:
+ *
+ * MODE_LOG - the trellises hold log base 2 probabilities, with log(0) as Double.NEGATIVE_INFINITY,
+ * and each sum over the states of a column is taken at once with the log-sum-exp kernel
+ * StaticUtil.calcLogSumOfLogs(double[], int, int). The expected counts are still exponentiated one
+ * by one, once per transition and emission cell of the backward sweep.
+ *
+ * MODE_SCALED - the trellises hold linear space probabilities, and every forward column is scaled
+ * to sum to 1.0 as described by Rabiner ("A Tutorial on Hidden Markov Models", 1989). The inner
+ * loops only multiply and add, and the log alpha of the sequence is recovered from the scaling
+ * coefficients as the sum of their logs. A sequence whose column mass underflows to 0 before scaling
+ * is treated as having alpha == 0.
+ *
+ * Both modes produce the same log alpha and the same expected counts, up to rounding. The
+ * recursions only visit transitions that exist, through the CSR lists of the HmmModel, and only
+ * the states that can emit the observation of a column, through its tag dictionary. The cells of the
+ * other states are set to 0 (log(0) in MODE_LOG) and are never read as non-zero terms.
+ *
+ * The forward matrix is a flat double[] trellis in row-major order, i.e. the cell for observation i
+ * and state s is at index i * numStates + s. The backward matrix is never stored: the backward sweep
+ * accumulates the expected counts as it goes and only keeps two columns. The arrays belong to this
+ * object and are reused from one observation sequence to the next, and the trellis only grows when a
+ * longer sequence arrives, so a warmed up instance runs without any allocation. Instances are not
+ * thread safe.
+ *
+ * Sequences of at least checkpointMinLength observations are run with checkpointing, so that a very
+ * long record does not need a T x K trellis. The sequence is cut into segments of about sqrt(T)
+ * observations. The forward pass only keeps the first column of each segment (the checkpoint) and the
+ * columns of the segment being filled in. The backward sweep then recomputes each segment from its
+ * checkpoint before visiting it. This costs about one extra forward pass and needs O(sqrt(T) * K)
+ * memory. Without checkpointing the whole sequence is a single segment.
+ *
+ * Optionally, the forward pass can be beam pruned: once a forward column is filled in, the states
+ * whose forward probability is more than beamMargin (in log base 2) below the largest one of the
+ * column are set to 0. The rest of the pass then runs on the pruned trellis, and the backward sweep
+ * skips every state with no forward mass. This makes the E-step approximate. The returned alpha and
+ * the posteriors are those of the pruned trellis, so the counts of a sequence still sum to 1.0 per
+ * observation. The number of pruned cells and the fraction of column mass they held are kept for
+ * reporting.
+ */
+public class ForwardBackward {
+
+	public static final String MODE_LOG = "log";
+	public static final String MODE_SCALED = "scaled";
+
+	public static final int DEFAULT_CHECKPOINT_MIN_LENGTH = 10000;
+	public static final double NO_BEAM = Double.POSITIVE_INFINITY;
+
+	private final HmmModel model;
+	private final int numStates;
+	private final boolean scaled;
+	private final int checkpointMinLength;
+	private double beamMargin = NO_BEAM;
+
+	// The forward columns of the segment of observations being visited.
+	private double[] forwardTrellis = new double[0];
+	// The first forward column of each segment, when checkpointing.
+	private double[] checkpoints = new double[0];
+	private int segmentLength;
+	private int loadedSegment;
+	// The backward columns of the current and the next observation of the backward sweep.
+	private final double[] backwardColumn;
+	private final double[] nextBackwardColumn;
+	// The scaling coefficient of each forward column in MODE_SCALED.
+	private double[] scales = new double[0];
+	// Scratch column of the terms of one log space sum.
+	private final double[] terms;
+
+	// The sequence of the last call to calculateForward().
+	private int[] observationSequence;
+	private int numObs;
+
+	// What the beam pruned from the sequence of the last call to calculateForward().
+	private long numPrunedStates;
+	private double prunedMass;
+
+	public ForwardBackward(HmmModel model) {
+		this(model, MODE_LOG);
+	}
+
+	public ForwardBackward(HmmModel model, String mode) {
+		this(model, mode, DEFAULT_CHECKPOINT_MIN_LENGTH);
+	}
+
+	public ForwardBackward(HmmModel model, String mode, int checkpointMinLength) {
+		if (!MODE_LOG.equals(mode) && !MODE_SCALED.equals(mode)) {
+			throw new IllegalArgumentException("Unknown E-step mode \"" + mode + "\".");
+		}
+
+		this.model = model;
+		this.numStates = model.getNumStates();
+		this.scaled = MODE_SCALED.equals(mode);
+		this.checkpointMinLength = checkpointMinLength;
+		this.terms = new double[numStates];
+		this.backwardColumn = new double[numStates];
+		this.nextBackwardColumn = new double[numStates];
+	}
+
+	/**
+	 * Sets the beam margin of the forward pass in log base 2, or NO_BEAM to run the exact E-step.
+	 */
+	public void setBeamMargin(double beamMargin) {
+		if (!(beamMargin >= 0.0)) {
+			throw new IllegalArgumentException("Beam margin must be non-negative, got " + beamMargin + ".");
+		}
+
+		this.beamMargin = beamMargin;
+	}
+
+	/**
+	 * Returns the number of trellis cells the beam pruned from the last sequence.
+	 */
+	public long getNumPrunedStates() {
+		return numPrunedStates;
+	}
+
+	/**
+	 * Returns the sum over the observations of the last sequence of the fraction of the forward column
+	 * mass the beam pruned.
+	 */
+	public double getPrunedMass() {
+		return prunedMass;
+	}
+
+	/**
+	 * Fills in the forward trellis for the first numObs token ids of the given observation sequence,
+	 * and returns the log alpha of the sequence under the model, or log(0) if alpha == 0. Each cell
+	 * corresponds to the sum over all possible previous taggings of the probability of observation i
+	 * given the state.
+	 */
+	public double calculateForward(int[] observationSequence, int numObs) {
+		this.observationSequence = observationSequence;
+		this.numObs = numObs;
+		ensureCapacity(numObs);
+		numPrunedStates = 0;
+		prunedMass = 0.0;
+
+		return scaled ? calculateScaledForward() : calculateLogForward();
+	}
+
+	/**
+	 * Runs the backward pass over the sequence of the last call to calculateForward(), and adds the
+	 * expected transition and emission counts of the sequence to the given counts. logAlpha must be the
+	 * (non-zero) alpha returned by calculateForward(), which the products of forward and backward
+	 * probabilities are divided by to get posteriors.
+	 *
+	 * Each backward cell corresponds to the sum over all possible subsequent taggings given the state,
+	 * not including the observation i. The posteriors of observation i are added as soon as its backward
+	 * column is filled in, so only the columns of observations i and i+1 are kept at any time.
+	 */
+	public void accumulateCounts(double logAlpha, ExpectedCounts counts) {
+		if (scaled) {
+			accumulateScaledCounts(counts);
+		} else {
+			accumulateLogCounts(logAlpha, counts);
+		}
+	}
+
+	private double calculateLogForward() {
+		for (int i = 0; i < numObs; i++) {
+			int row = (i % segmentLength) * numStates;
+			fillLogForwardColumn(i, previousRow(row), row);
+			pruneLogForwardColumn(i, row, true);
+			saveCheckpoint(i, row);
+		}
+		loadedSegment = (numObs-1) / segmentLength;
+
+		// Alpha is the sum of the last column.
+		return StaticUtil.calcLogSumOfLogs(forwardTrellis, ((numObs-1) % segmentLength) * numStates, numStates);
+	}
+
+	private double calculateScaledForward() {
+		double logAlpha = 0.0;
+
+		for (int i = 0; i < numObs; i++) {
+			int row = (i % segmentLength) * numStates;
+			double scale = pruneScaledForwardColumn(i, row, fillScaledForwardColumn(i, previousRow(row), row), true);
+
+			// Scale the column i to sum to 1.0, remembering the scale for the backward pass and alpha.
+			if (scale == 0.0) {
+				return Double.NEGATIVE_INFINITY;
+			}
+
+			scales[i] = scale;
+			logAlpha += Math.log(scale);
+			scaleForwardColumn(i, row, scale);
+			saveCheckpoint(i, row);
+		}
+		loadedSegment = (numObs-1) / segmentLength;
+
+		return logAlpha / StaticUtil.LOG_2;
+	}
+
+	/**
+	 * Fills in the log forward column of observation i at the given row of the forward trellis, from the
+	 * column of observation i-1 at prevRow. For i == 0, prevRow is ignored.
+	 */
+	private void fillLogForwardColumn(int i, int prevRow, int row) {
+		double[] forward = forwardTrellis;
+		double[] emisLogProbs = model.getEmissionColumn(observationSequence[i]);
+		Arrays.fill(forward, row, row + numStates, Double.NEGATIVE_INFINITY);
+
+		if (i == 0) {
+			// The first observation requires a special case because we start out at startState with a
+			// probability of 1.0.
+			double[] startLogProbs = model.getStartLogProbs();
+			for (int state : model.getAllowedStates(observationSequence[0])) {
+				// P(state|#) * P(firstObservation|state)
+				forward[row + state] = startLogProbs[state] + emisLogProbs[state];
+			}
+			return;
+		}
+
+		int[] predOffsets = model.getPredOffsets();
+		int[] predStates = model.getPredStates();
+		double[] predLogProbs = model.getPredLogProbs();
+
+		for (int state : model.getAllowedStates(observationSequence[i])) {
+			// Gather P(state|prevState) * Forward(i-1, prevState) for all non-zero terms and sum them at once.
+			int numTerms = 0;
+			for (int edge = predOffsets[state]; edge < predOffsets[state+1]; edge++) {
+				double newLogProb = predLogProbs[edge] + forward[prevRow + predStates[edge]];
+				if (newLogProb != Double.NEGATIVE_INFINITY) {
+					terms[numTerms++] = newLogProb;
+				}
+			}
+
+			// The emission probability is the same given one state.
+			forward[row + state] = StaticUtil.calcLogSumOfLogs(terms, 0, numTerms) + emisLogProbs[state];
+		}
+	}
+
+	/**
+	 * Fills in the linear forward column of observation i at the given row of the forward trellis, from
+	 * the (scaled) column of observation i-1 at prevRow, and returns the sum of the column. The column is
+	 * left unscaled. For i == 0, prevRow is ignored.
+	 */
+	private double fillScaledForwardColumn(int i, int prevRow, int row) {
+		double[] forward = forwardTrellis;
+		double[] emisProbs = model.getEmissionProbColumn(observationSequence[i]);
+		Arrays.fill(forward, row, row + numStates, 0.0);
+		double scale = 0.0;
+
+		if (i == 0) {
+			// The first column starts out at startState with a probability of 1.0.
+			double[] startProbs = model.getStartProbs();
+			for (int state : model.getAllowedStates(observationSequence[0])) {
+				double prob = startProbs[state] * emisProbs[state];
+				forward[row + state] = prob;
+				scale += prob;
+			}
+			return scale;
+		}
+
+		int[] predOffsets = model.getPredOffsets();
+		int[] predStates = model.getPredStates();
+		double[] predProbs = model.getPredProbs();
+
+		for (int state : model.getAllowedStates(observationSequence[i])) {
+			double totalProb = 0.0;
+			for (int edge = predOffsets[state]; edge < predOffsets[state+1]; edge++) {
+				// P(state|prevState) * Forward(i-1, prevState)
+				totalProb += predProbs[edge] * forward[prevRow + predStates[edge]];
+			}
+			totalProb *= emisProbs[state];
+
+			forward[row + state] = totalProb;
+			scale += totalProb;
+		}
+
+		return scale;
+	}
+
+	/**
+	 * Prunes the log forward column of observation i at the given row to the beam, counting what was
+	 * pruned if record is set.
+	 */
+	private void pruneLogForwardColumn(int i, int row, boolean record) {
+		if (beamMargin == NO_BEAM) {
+			return;
+		}
+
+		double[] forward = forwardTrellis;
+		int[] allowedStates = model.getAllowedStates(observationSequence[i]);
+
+		double logMax = Double.NEGATIVE_INFINITY;
+		for (int state : allowedStates) {
+			logMax = Math.max(logMax, forward[row + state]);
+		}
+
+		double logThreshold = logMax - beamMargin;
+		int numPruned = 0;
+		for (int state : allowedStates) {
+			double logProb = forward[row + state];
+			if (logProb < logThreshold && logProb != Double.NEGATIVE_INFINITY) {
+				terms[numPruned++] = logProb;
+				forward[row + state] = Double.NEGATIVE_INFINITY;
+			}
+		}
+
+		if (record && numPruned > 0) {
+			double logPrunedSum = StaticUtil.calcLogSumOfLogs(terms, 0, numPruned);
+			double logKeptSum = StaticUtil.calcLogSumOfLogs(forward, row, numStates);
+
+			numPrunedStates += numPruned;
+			prunedMass += Math.pow(2, logPrunedSum - StaticUtil.calcLogSumOfLogs(logPrunedSum, logKeptSum));
+		}
+	}
+
+	/**
+	 * Prunes the unscaled linear forward column of observation i at the given row, whose sum is given,
+	 * to the beam, and returns the sum of what is left. Counts what was pruned if record is set.
+	 */
+	private double pruneScaledForwardColumn(int i, int row, double sum, boolean record) {
+		if (beamMargin == NO_BEAM || sum == 0.0) {
+			return sum;
+		}
+
+		double[] forward = forwardTrellis;
+		int[] allowedStates = model.getAllowedStates(observationSequence[i]);
+
+		double max = 0.0;
+		for (int state : allowedStates) {
+			max = Math.max(max, forward[row + state]);
+		}
+
+		double threshold = max * Math.pow(2, -beamMargin);
+		double keptSum = 0.0;
+		double prunedSum = 0.0;
+		int numPruned = 0;
+		for (int state : allowedStates) {
+			double prob = forward[row + state];
+			if (prob < threshold) {
+				if (prob != 0.0) {
+					prunedSum += prob;
+					numPruned++;
+					forward[row + state] = 0.0;
+				}
+			} else {
+				keptSum += prob;
+			}
+		}
+
+		if (record && numPruned > 0) {
+			numPrunedStates += numPruned;
+			prunedMass += prunedSum / sum;
+		}
+
+		return keptSum;
+	}
+
+	private void scaleForwardColumn(int i, int row, double scale) {
+		double invScale = 1.0 / scale;
+		for (int state : model.getAllowedStates(observationSequence[i])) {
+			forwardTrellis[row + state] *= invScale;
+		}
+	}
+
+	/**
+	 * Returns the row of the forward trellis that holds the column before the one at the given row. The
+	 * trellis holds one segment at a time, so the column before the first of a segment is the last one.
+	 */
+	private int previousRow(int row) {
+		return row == 0 ? (segmentLength - 1) * numStates : row - numStates;
+	}
+
+	private void saveCheckpoint(int i, int row) {
+		if (segmentLength < numObs && i % segmentLength == 0) {
+			System.arraycopy(forwardTrellis, row, checkpoints, (i / segmentLength) * numStates, numStates);
+		}
+	}
+
+	/**
+	 * Returns the row of the forward trellis that holds the column of observation i, recomputing the
+	 * segment of observation i from its checkpoint if the trellis holds another one. The backward sweep
+	 * visits the observations in decreasing order, so every segment is recomputed at most once.
+	 */
+	private int loadForwardColumn(int i) {
+		int segment = i / segmentLength;
+		int first = segment * segmentLength;
+
+		if (segment != loadedSegment) {
+			System.arraycopy(checkpoints, segment * numStates, forwardTrellis, 0, numStates);
+
+			// Segments other than the last one are full.
+			for (int j = first + 1; j < first + segmentLength; j++) {
+				int row = (j - first) * numStates;
+				if (scaled) {
+					// Dividing by the scale of the forward pass reproduces the scaled column exactly.
+					pruneScaledForwardColumn(j, row, fillScaledForwardColumn(j, row - numStates, row), false);
+					scaleForwardColumn(j, row, scales[j]);
+				} else {
+					fillLogForwardColumn(j, row - numStates, row);
+					pruneLogForwardColumn(j, row, false);
+				}
+			}
+
+			loadedSegment = segment;
+		}
+
+		return (i - first) * numStates;
+	}
+
+	private void accumulateLogCounts(double logAlpha, ExpectedCounts counts) {
+		int[] succOffsets = model.getSuccOffsets();
+		int[] succStates = model.getSuccStates();
+		double[] succLogProbs = model.getSuccLogProbs();
+		double[] forward = forwardTrellis;
+		double[] backward = backwardColumn;
+		double[] nextBackward = nextBackwardColumn;
+		double[] nextEmisLogProbs = null;
+
+		// Sweep from the last observation to the first, filling in the backward column of observation i
+		// from that of observation i+1 and adding the posteriors of observation i as soon as it is known.
+		for (int i = numObs - 1; i >= 0; i--) {
+			int row = loadForwardColumn(i);
+			double[] emisCounts = null;
+			Arrays.fill(backward, Double.NEGATIVE_INFINITY);
+
+			for (int state : model.getAllowedStates(observationSequence[i])) {
+				double forwardLogProb = forward[row + state] - logAlpha;
+				if (forwardLogProb == Double.NEGATIVE_INFINITY) {
+					continue; // No path reaches the state, so neither do the transitions into it.
+				}
+
+				if (i == numObs - 1) {
+					// The last observation has a subsequent taggings probability of 1.0.
+					backward[state] = 0.0;
+				} else {
+					// Gather P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState) for all
+					// non-zero terms and sum them at once. Each term times Forward(i, state) / alpha is also
+					// the posterior of the transition from state to nextState.
+					int numTerms = 0;
+					for (int edge = succOffsets[state]; edge < succOffsets[state+1]; edge++) {
+						int nextState = succStates[edge];
+						double newLogProb = succLogProbs[edge] + nextEmisLogProbs[nextState] + nextBackward[nextState];
+						if (newLogProb != Double.NEGATIVE_INFINITY) {
+							terms[numTerms++] = newLogProb;
+							counts.addTransitionCount(state, nextState, Math.pow(2, forwardLogProb + newLogProb));
+						}
+					}
+
+					backward[state] = StaticUtil.calcLogSumOfLogs(terms, 0, numTerms);
+				}
+
+				// Forward(i, state) * Backward(i, state) / alpha is the posterior of state emitting observation i.
+				double logProbObsGivenState = forwardLogProb + backward[state];
+				if (logProbObsGivenState != Double.NEGATIVE_INFINITY) {
+					if (emisCounts == null) {
+						emisCounts = counts.getEmissionCountsForUpdate(observationSequence[i]);
+					}
+					emisCounts[state] += Math.pow(2, logProbObsGivenState);
+				}
+			}
+
+			// Only the column of observation i is needed to fill in that of observation i-1.
+			double[] swap = nextBackward;
+			nextBackward = backward;
+			backward = swap;
+			nextEmisLogProbs = model.getEmissionColumn(observationSequence[i]);
+		}
+
+		// Calculate the transition counts from #, using the backward column of the first observation.
+		for (int state : model.getAllowedStates(observationSequence[0])) {
+			double logProbStateGivenStart = forward[state] + nextBackward[state] - logAlpha;
+			if (logProbStateGivenStart != Double.NEGATIVE_INFINITY) {
+				counts.addStartCount(state, Math.pow(2, logProbStateGivenStart));
+			}
+		}
+	}
+
+	private void accumulateScaledCounts(ExpectedCounts counts) {
+		int[] succOffsets = model.getSuccOffsets();
+		int[] succStates = model.getSuccStates();
+		double[] succProbs = model.getSuccProbs();
+		double[] forward = forwardTrellis;
+		double[] backward = backwardColumn;
+		double[] nextBackward = nextBackwardColumn;
+		double[] nextEmisProbs = null;
+
+		// The same sweep as in MODE_LOG. Backward column i is scaled by the scale of forward column i+1,
+		// so that the scaled forward and backward columns multiply to posteriors directly.
+		for (int i = numObs - 1; i >= 0; i--) {
+			int row = loadForwardColumn(i);
+			double[] emisCounts = null;
+			double invScale = i == numObs - 1 ? 1.0 : 1.0 / scales[i+1];
+			Arrays.fill(backward, 0.0);
+
+			for (int state : model.getAllowedStates(observationSequence[i])) {
+				double forwardProb = forward[row + state];
+				if (forwardProb == 0.0) {
+					continue;
+				}
+
+				if (i == numObs - 1) {
+					backward[state] = 1.0;
+				} else {
+					double scaledForwardProb = forwardProb * invScale;
+					double totalProb = 0.0;
+
+					for (int edge = succOffsets[state]; edge < succOffsets[state+1]; edge++) {
+						// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState)
+						int nextState = succStates[edge];
+						double prob = succProbs[edge] * nextEmisProbs[nextState] * nextBackward[nextState];
+						totalProb += prob;
+
+						double probToStateGivenFromState = scaledForwardProb * prob;
+						if (probToStateGivenFromState != 0.0) {
+							counts.addTransitionCount(state, nextState, probToStateGivenFromState);
+						}
+					}
+
+					backward[state] = totalProb * invScale;
+				}
+
+				double probObsGivenState = forwardProb * backward[state];
+				if (probObsGivenState != 0.0) {
+					if (emisCounts == null) {
+						emisCounts = counts.getEmissionCountsForUpdate(observationSequence[i]);
+					}
+					emisCounts[state] += probObsGivenState;
+				}
+			}
+
+			double[] swap = nextBackward;
+			nextBackward = backward;
+			backward = swap;
+			nextEmisProbs = model.getEmissionProbColumn(observationSequence[i]);
+		}
+
+		for (int state : model.getAllowedStates(observationSequence[0])) {
+			double probStateGivenStart = forward[state] * nextBackward[state];
+			if (probStateGivenStart != 0.0) {
+				counts.addStartCount(state, probStateGivenStart);
+			}
+		}
+	}
+
+	/**
+	 * Chooses the segment length for a sequence of the given length, and grows the forward trellis and
+	 * the checkpoints if they cannot hold it. Grows at least geometrically, so a corpus of slowly
+	 * increasing lengths causes few reallocations.
+	 */
+	private void ensureCapacity(int numObs) {
+		if (numObs > scales.length) {
+			scales = new double[Math.max(numObs, scales.length * 2)];
+		}
+
+		if (numObs >= checkpointMinLength) {
+			segmentLength = (int) Math.ceil(Math.sqrt(numObs));
+
+			int numCheckpointCells = ((numObs + segmentLength - 1) / segmentLength) * numStates;
+			if (numCheckpointCells > checkpoints.length) {
+				checkpoints = new double[Math.max(numCheckpointCells, checkpoints.length * 2)];
+			}
+		} else {
+			segmentLength = numObs;
+		}
+
+		int numCells = segmentLength * numStates;
+		if (numCells <= forwardTrellis.length) {
+			return;
+		}
+
+		forwardTrellis = new double[Math.max(numCells, forwardTrellis.length * 2)];
+	}
+}
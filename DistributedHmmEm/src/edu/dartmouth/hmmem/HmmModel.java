@@ -0,0 +1,558 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A compiled, integer-indexed form of the HMM model parameters.
+ *
+ * States and tokens are interned to dense int ids once, when the model is loaded, so that the
+ * E-step and Viterbi kernels can run on primitive arrays without any hashing or allocation per
+ * trellis cell. Transitions are stored as a K x K matrix and emissions as one column of K state
+ * log probabilities per token. A probability of 0 (represented by null in the map form of the
+ * model) is stored as Double.NEGATIVE_INFINITY.
+ *
+ * Since the transitions file usually allows only a fraction of all state pairs, the transitions
+ * are also compiled into compressed sparse row (CSR) predecessor and successor lists. The edges
+ * into state s are predStates[predOffsets[s]] through predStates[predOffsets[s+1] - 1], with their
+ * log probabilities at the same indices of predLogProbs, and likewise for the edges out of s. The
+ * recursions walk these lists, so they cost O(T*E) for E allowed transitions instead of O(T*K^2).
+ *
+ * Likewise, the emissions file says which states can emit each token. The model keeps this tag
+ * dictionary as an inverted index from each token to the ids of the states that can emit it, so
+ * the recursions only visit those states in the trellis column of the token.
+ *
+ * State and token ids are assigned in sorted order, so every task that compiles the same model
+ * parameters agrees on the ids. A model may also be compiled with the fixed token ids of a Vocabulary,
+ * which stay the same from one iteration to the next, so that a corpus encoded once stays valid.
+ */
+public class HmmModel {
+
+	public static final int UNKNOWN_ID = -1;
+
+	private final String startState;
+
+	private final String[] states;
+	private final Map<String, Integer> stateIds;
+
+	private final String[] tokens;
+	private final Map<String, Integer> tokenIds;
+
+	// P(state|startState), indexed by state id.
+	private final double[] startLogProbs;
+	// P(toState|fromState), indexed by [fromState][toState].
+	private final double[][] transLogProbs;
+
+	// CSR lists of the non-zero transitions into and out of each state.
+	private int[] predOffsets;
+	private int[] predStates;
+	private double[] predLogProbs;
+	private int[] succOffsets;
+	private int[] succStates;
+	private double[] succLogProbs;
+	// P(token|state), indexed by [token][state].
+	private final double[][] emisLogProbs;
+
+	// The states that can emit each token, in increasing order, indexed by [token].
+	private final int[][] allowedStates;
+
+	// Emission column used for tokens that no state can emit.
+	private final double[] zeroColumn;
+	private static final int[] NO_STATES = new int[0];
+
+	// Linear space copies of the probabilities for the scaled E-step, built on first use.
+	private volatile LinearProbs linearProbs;
+	// Index of the UTF-8 bytes of the tokens, built on first use.
+	private volatile TokenIndex tokenIndex;
+
+	private HmmModel(String startState, String[] states, String[] tokens) {
+		this(startState, states, makeIdMap(states), tokens, makeIdMap(tokens));
+	}
+
+	private HmmModel(String startState, String[] states, Map<String, Integer> stateIds, String[] tokens,
+			Map<String, Integer> tokenIds) {
+		this.startState = startState;
+		this.states = states;
+		this.stateIds = stateIds;
+		this.tokens = tokens;
+		this.tokenIds = tokenIds;
+
+		int numStates = states.length;
+
+		startLogProbs = makeZeroArray(numStates);
+		transLogProbs = new double[numStates][];
+		for (int i = 0; i < numStates; i++) {
+			transLogProbs[i] = makeZeroArray(numStates);
+		}
+
+		emisLogProbs = new double[tokens.length][];
+		for (int i = 0; i < tokens.length; i++) {
+			emisLogProbs[i] = makeZeroArray(numStates);
+		}
+		allowedStates = new int[tokens.length][];
+
+		zeroColumn = makeZeroArray(numStates);
+	}
+
+	/**
+	 * Compiles the given transition and emission log probability maps. The state set is the set of
+	 * to states of all transitions (see StaticUtil.makeStateSetFromTransDict), and transitions out of
+	 * startState give the initial state distribution. Parameters that mention a state outside of the
+	 * state set are ignored, since they can never be used. The tokens are those of the emissions.
+	 */
+	public static HmmModel compile(Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap, String startState) {
+		return compile(transLogProbMap, emisLogProbMap, startState, null);
+	}
+
+	/**
+	 * Compiles the given transition and emission log probability maps as above, but with the tokens and
+	 * token ids of the given vocabulary, unless it is null. Emissions of tokens outside of the vocabulary
+	 * are ignored.
+	 */
+	public static HmmModel compile(Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap, String startState,
+			Vocabulary vocabulary) {
+		Set<String> stateSet = new TreeSet<String>(StaticUtil.makeStateSetFromTransDict(transLogProbMap));
+
+		String[] tokens;
+		if (vocabulary != null) {
+			tokens = vocabulary.getTokens();
+		} else {
+			Set<String> tokenSet = new TreeSet<String>();
+			for (StringPair stateToken : emisLogProbMap.keySet()) {
+				tokenSet.add(stateToken.getY());
+			}
+			tokens = tokenSet.toArray(new String[tokenSet.size()]);
+		}
+
+		HmmModel model = new HmmModel(startState, stateSet.toArray(new String[stateSet.size()]), tokens);
+
+		for (Entry<StringPair, Double> entry : transLogProbMap.entrySet()) {
+			if (entry.getValue() == null) {
+				continue;
+			}
+
+			int toState = model.getStateId(entry.getKey().getY());
+			if (entry.getKey().getX().equals(startState)) {
+				model.startLogProbs[toState] = entry.getValue();
+			}
+
+			int fromState = model.getStateId(entry.getKey().getX());
+			if (fromState != UNKNOWN_ID) {
+				model.transLogProbs[fromState][toState] = entry.getValue();
+			}
+		}
+
+		for (Entry<StringPair, Double> entry : emisLogProbMap.entrySet()) {
+			int state = model.getStateId(entry.getKey().getX());
+			if (entry.getValue() == null || state == UNKNOWN_ID) {
+				continue;
+			}
+
+			int token = model.getTokenId(entry.getKey().getY());
+			if (token != UNKNOWN_ID) {
+				model.emisLogProbs[token][state] = entry.getValue();
+			}
+		}
+
+		model.compileTransitionLists();
+		model.compileAllowedStates();
+
+		return model;
+	}
+
+	/**
+	 * Returns the model with the states and tokens of this one whose probabilities are the given expected
+	 * counts normalized, i.e. the M-step. The counts must be of a model with the same states and tokens,
+	 * such as this one. A state without counts gets probability 0 for all its transitions or emissions.
+	 * The new model shares the id maps and token index of this one, so re-estimating is linear in the
+	 * size of the model.
+	 */
+	public HmmModel reestimate(ExpectedCounts counts) {
+		int numStates = states.length;
+
+		HmmModel model = new HmmModel(startState, states, stateIds, tokens, tokenIds);
+		model.tokenIndex = tokenIndex;
+
+		setNormalizedLogProbs(counts.getStartCounts(), model.startLogProbs);
+		double[][] transCounts = counts.getTransCounts();
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			setNormalizedLogProbs(transCounts[fromState], model.transLogProbs[fromState]);
+		}
+
+		// The emission counts are stored by token, so the totals of the states are summed first.
+		double[] stateTotals = new double[numStates];
+		for (int i = 0; i < counts.getNumTouchedTokens(); i++) {
+			double[] emisCounts = counts.getEmissionCounts(counts.getTouchedToken(i));
+			for (int state = 0; state < numStates; state++) {
+				stateTotals[state] += emisCounts[state];
+			}
+		}
+
+		for (int i = 0; i < counts.getNumTouchedTokens(); i++) {
+			int token = counts.getTouchedToken(i);
+			double[] emisCounts = counts.getEmissionCounts(token);
+			for (int state = 0; state < numStates; state++) {
+				if (emisCounts[state] > 0) {
+					model.emisLogProbs[token][state] = Math.log(emisCounts[state] / stateTotals[state]) / StaticUtil.LOG_2;
+				}
+			}
+		}
+
+		model.compileTransitionLists();
+		model.compileAllowedStates();
+
+		return model;
+	}
+
+	/**
+	 * Sets logProbs to the logs of the given counts divided by their total, leaving those of zero counts
+	 * at log(0).
+	 */
+	private static void setNormalizedLogProbs(double[] counts, double[] logProbs) {
+		double total = 0.0;
+		for (double count : counts) {
+			total += count;
+		}
+
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				logProbs[i] = Math.log(counts[i] / total) / StaticUtil.LOG_2;
+			}
+		}
+	}
+
+	/**
+	 * Builds the CSR predecessor and successor lists from the transition matrix. Edges are ordered by
+	 * state id within each list.
+	 */
+	private void compileTransitionLists() {
+		int numStates = states.length;
+
+		predOffsets = new int[numStates + 1];
+		succOffsets = new int[numStates + 1];
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			for (int toState = 0; toState < numStates; toState++) {
+				if (transLogProbs[fromState][toState] != Double.NEGATIVE_INFINITY) {
+					predOffsets[toState + 1]++;
+					succOffsets[fromState + 1]++;
+				}
+			}
+		}
+
+		for (int state = 0; state < numStates; state++) {
+			predOffsets[state + 1] += predOffsets[state];
+			succOffsets[state + 1] += succOffsets[state];
+		}
+
+		int numEdges = succOffsets[numStates];
+		predStates = new int[numEdges];
+		predLogProbs = new double[numEdges];
+		succStates = new int[numEdges];
+		succLogProbs = new double[numEdges];
+
+		int[] nextPred = Arrays.copyOf(predOffsets, numStates);
+		int succ = 0;
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			for (int toState = 0; toState < numStates; toState++) {
+				double logProb = transLogProbs[fromState][toState];
+				if (logProb != Double.NEGATIVE_INFINITY) {
+					succStates[succ] = toState;
+					succLogProbs[succ] = logProb;
+					succ++;
+
+					int pred = nextPred[toState]++;
+					predStates[pred] = fromState;
+					predLogProbs[pred] = logProb;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds the tag dictionary from the emission columns.
+	 */
+	private void compileAllowedStates() {
+		int numStates = states.length;
+		int[] buffer = new int[numStates];
+
+		for (int token = 0; token < tokens.length; token++) {
+			int numAllowed = 0;
+			for (int state = 0; state < numStates; state++) {
+				if (emisLogProbs[token][state] != Double.NEGATIVE_INFINITY) {
+					buffer[numAllowed++] = state;
+				}
+			}
+
+			allowedStates[token] = Arrays.copyOf(buffer, numAllowed);
+		}
+	}
+
+	/**
+	 * Converts an observation sequence to token ids. Tokens that are not in the model are mapped
+	 * to UNKNOWN_ID.
+	 */
+	public int[] encode(List<String> observationSequence) {
+		return encode(observationSequence, new int[observationSequence.size()]);
+	}
+
+	/**
+	 * Converts an observation sequence to token ids, writing them into the given buffer if it is long
+	 * enough. Returns the buffer that holds the ids.
+	 */
+	public int[] encode(List<String> observationSequence, int[] buffer) {
+		int numObs = observationSequence.size();
+		int[] encoded = buffer.length >= numObs ? buffer : new int[Math.max(numObs, buffer.length * 2)];
+
+		for (int i = 0; i < numObs; i++) {
+			encoded[i] = getTokenId(observationSequence.get(i));
+		}
+
+		return encoded;
+	}
+
+	public String getStartState() {
+		return startState;
+	}
+
+	public int getNumStates() {
+		return states.length;
+	}
+
+	public int getNumTokens() {
+		return tokens.length;
+	}
+
+	public String getState(int stateId) {
+		return states[stateId];
+	}
+
+	public String getToken(int tokenId) {
+		return tokens[tokenId];
+	}
+
+	/**
+	 * Returns the id of the given state, or UNKNOWN_ID if it is not in the state set.
+	 */
+	public int getStateId(String state) {
+		Integer id = stateIds.get(state);
+		return id == null ? UNKNOWN_ID : id;
+	}
+
+	/**
+	 * Returns the index of the UTF-8 bytes of the tokens of the model to their ids, building it on first
+	 * use. The index is immutable and so can be shared by the ByteTokenizers of several threads.
+	 */
+	public TokenIndex getTokenIndex() {
+		TokenIndex index = tokenIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = tokenIndex;
+				if (index == null) {
+					index = new TokenIndex(tokens);
+					tokenIndex = index;
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the id of the given token, or UNKNOWN_ID if it is not a token of the model.
+	 */
+	public int getTokenId(String token) {
+		Integer id = tokenIds.get(token);
+		return id == null ? UNKNOWN_ID : id;
+	}
+
+	/**
+	 * Returns log P(state|startState) for each state. The array is shared and must not be modified.
+	 */
+	public double[] getStartLogProbs() {
+		return startLogProbs;
+	}
+
+	/**
+	 * Returns log P(toState|fromState) indexed by [fromState][toState]. The arrays are shared and
+	 * must not be modified.
+	 */
+	public double[][] getTransLogProbs() {
+		return transLogProbs;
+	}
+
+	/**
+	 * Returns the number of non-zero transitions between states, not counting those from startState.
+	 */
+	public int getNumTransitions() {
+		return succStates.length;
+	}
+
+	/**
+	 * Returns the CSR offsets of the predecessor lists: the edges into state s are at indices
+	 * getPredOffsets()[s] through getPredOffsets()[s+1] - 1 of getPredStates() and getPredLogProbs().
+	 * The arrays are shared and must not be modified.
+	 */
+	public int[] getPredOffsets() {
+		return predOffsets;
+	}
+
+	public int[] getPredStates() {
+		return predStates;
+	}
+
+	public double[] getPredLogProbs() {
+		return predLogProbs;
+	}
+
+	/**
+	 * Returns the CSR offsets of the successor lists: the edges out of state s are at indices
+	 * getSuccOffsets()[s] through getSuccOffsets()[s+1] - 1 of getSuccStates() and getSuccLogProbs().
+	 * The arrays are shared and must not be modified.
+	 */
+	public int[] getSuccOffsets() {
+		return succOffsets;
+	}
+
+	public int[] getSuccStates() {
+		return succStates;
+	}
+
+	public double[] getSuccLogProbs() {
+		return succLogProbs;
+	}
+
+	/**
+	 * Returns the ids of the states that can emit the given token, in increasing order. Unknown tokens
+	 * get an empty array. The array is shared and must not be modified.
+	 */
+	public int[] getAllowedStates(int tokenId) {
+		return tokenId == UNKNOWN_ID ? NO_STATES : allowedStates[tokenId];
+	}
+
+	/**
+	 * Returns log P(token|state) for each state. Unknown tokens get a column of log(0). The array is
+	 * shared and must not be modified.
+	 */
+	public double[] getEmissionColumn(int tokenId) {
+		return tokenId == UNKNOWN_ID ? zeroColumn : emisLogProbs[tokenId];
+	}
+
+	/**
+	 * Returns P(state|startState) for each state in linear space. The array is shared and must not be
+	 * modified.
+	 */
+	public double[] getStartProbs() {
+		return getLinearProbs().startProbs;
+	}
+
+	/**
+	 * Returns P(toState|fromState) in linear space, indexed by [fromState][toState]. The arrays are
+	 * shared and must not be modified.
+	 */
+	public double[][] getTransProbs() {
+		return getLinearProbs().transProbs;
+	}
+
+	/**
+	 * Returns the probabilities of the predecessor list edges in linear space. The array is shared
+	 * and must not be modified.
+	 */
+	public double[] getPredProbs() {
+		return getLinearProbs().predProbs;
+	}
+
+	/**
+	 * Returns the probabilities of the successor list edges in linear space. The array is shared and
+	 * must not be modified.
+	 */
+	public double[] getSuccProbs() {
+		return getLinearProbs().succProbs;
+	}
+
+	/**
+	 * Returns P(token|state) for each state in linear space. Unknown tokens get a column of 0. The
+	 * array is shared and must not be modified.
+	 */
+	public double[] getEmissionProbColumn(int tokenId) {
+		LinearProbs probs = getLinearProbs();
+		return tokenId == UNKNOWN_ID ? probs.zeroColumn : probs.emisProbs[tokenId];
+	}
+
+	/**
+	 * Linear space copies of the model probabilities. Only the scaled E-step needs them, so they are
+	 * not built unless it is used.
+	 */
+	private static class LinearProbs {
+		private final double[] startProbs;
+		private final double[][] transProbs;
+		private final double[] predProbs;
+		private final double[] succProbs;
+		private final double[][] emisProbs;
+		private final double[] zeroColumn;
+
+		private LinearProbs(HmmModel model) {
+			startProbs = exp2(model.startLogProbs);
+
+			transProbs = new double[model.transLogProbs.length][];
+			for (int i = 0; i < transProbs.length; i++) {
+				transProbs[i] = exp2(model.transLogProbs[i]);
+			}
+			predProbs = exp2(model.predLogProbs);
+			succProbs = exp2(model.succLogProbs);
+
+			emisProbs = new double[model.emisLogProbs.length][];
+			for (int i = 0; i < emisProbs.length; i++) {
+				emisProbs[i] = exp2(model.emisLogProbs[i]);
+			}
+
+			zeroColumn = new double[model.getNumStates()];
+		}
+
+		private static double[] exp2(double[] logProbs) {
+			double[] probs = new double[logProbs.length];
+
+			for (int i = 0; i < logProbs.length; i++) {
+				probs[i] = Math.pow(2, logProbs[i]);
+			}
+
+			return probs;
+		}
+	}
+
+	private LinearProbs getLinearProbs() {
+		LinearProbs probs = linearProbs;
+
+		if (probs == null) {
+			synchronized (this) {
+				probs = linearProbs;
+				if (probs == null) {
+					probs = new LinearProbs(this);
+					linearProbs = probs;
+				}
+			}
+		}
+
+		return probs;
+	}
+
+	private static Map<String, Integer> makeIdMap(String[] strings) {
+		Map<String, Integer> idMap = new HashMap<String, Integer>();
+
+		for (int i = 0; i < strings.length; i++) {
+			idMap.put(strings[i], i);
+		}
+
+		return idMap;
+	}
+
+	private static double[] makeZeroArray(int length) {
+		double[] array = new double[length];
+		Arrays.fill(array, Double.NEGATIVE_INFINITY);
+		return array;
+	}
+}
@@ -0,0 +1,372 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Incremental E-step (Neal and Hinton, "A View of the EM Algorithm that Justifies Incremental, Sparse,
+ * and Other Variants", 1998) of the split of an ExpectationMapper.
+ *
+ * The observation sequences of a split are grouped into blocks of BLOCK_SIZE_KEY consecutive records,
+ * and the expected counts of each block are kept from one iteration to the next, in side files of the
+ * job output: .../<iteration>/incremental/<split>.counts and <split>.index. In each iteration, only
+ * INCREMENTAL_FRACTION_KEY of the blocks of the split are recomputed under the current model. The stored
+ * counts of the other blocks are output as they are, i.e. the old contribution of every recomputed block
+ * is replaced by its new one. Each iteration still cannot decrease the likelihood bound of EM, while its
+ * E-step only costs about the given fraction of a full one.
+ *
+ * The blocks to recompute are those that have gone the longest without (SELECTION_STALENESS, the
+ * default), so all of them are recomputed in turn, or those whose log alpha per sequence changed the
+ * most the last time they were recomputed, times the number of iterations since then
+ * (SELECTION_LIKELIHOOD_CHANGE). Blocks without stored counts are always computed.
+ *
+ * The total log alpha of an iteration is the sum of those of the blocks, each under the model it was
+ * last recomputed with. The counts are stored by the ids of the model, so they are only reused by a model
+ * with the same states and tokens. Otherwise, e.g. after a token lost all its emissions, the whole split
+ * is recomputed. Instances are not thread safe.
+ */
+public class IncrementalEStep {
+
+	private static final Logger LOGGER = Logger.getLogger(IncrementalEStep.class.toString());
+
+	// The fraction of the blocks of each split to recompute per iteration. Unset runs the full E-step.
+	public static final String INCREMENTAL_FRACTION_KEY = "incremental_fraction";
+	// Number of records (input lines) per block.
+	public static final String BLOCK_SIZE_KEY = "incremental_block_size";
+	public static final int DEFAULT_BLOCK_SIZE = 1000;
+	public static final String SELECTION_KEY = "incremental_selection";
+	public static final String SELECTION_STALENESS = "staleness";
+	public static final String SELECTION_LIKELIHOOD_CHANGE = "likelihood_change";
+	// The directory of the block counts stored by the previous iteration, set by the driver.
+	public static final String PREVIOUS_STATISTICS_DIR_PATH_KEY = "incremental_previous_statistics_dir";
+
+	// Name of the directory of the block counts in the output directory of an iteration.
+	public static final String STATISTICS_DIR_NAME = "incremental";
+
+	private static final String COUNTS_FILE_EXTENSION = ".counts";
+	private static final String INDEX_FILE_EXTENSION = ".index";
+
+	// Ends the transition and emission sections of the counts of a block. State ids start at START_STATE_ID.
+	private static final int END_OF_SECTION = EMRecordKey.START_STATE_ID - 1;
+
+	private final int modelIteration;
+	private final long layoutHash;
+
+	// The blocks stored by the previous iteration, and which of them to recompute.
+	private BlockInfo[] previousBlocks = new BlockInfo[0];
+	private boolean[] recomputed = new boolean[0];
+	private DataInputStream previousCountsIn;
+
+	// The blocks of this iteration.
+	private final List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+	private final DataOutputStream countsOut;
+	private final DataOutputStream indexOut;
+
+	// Reused from one block to the next.
+	private final DataOutputBuffer outputBuffer = new DataOutputBuffer();
+	private final DataInputBuffer inputBuffer = new DataInputBuffer();
+	private byte[] bytes = new byte[0];
+
+	/**
+	 * Opens the stored block counts of the split of the given map task for the given model, if any, and
+	 * the side files to store those of this iteration.
+	 */
+	public IncrementalEStep(JobConf job, HmmModel model) throws IOException {
+		double fraction = Double.parseDouble(job.get(INCREMENTAL_FRACTION_KEY));
+		if (!(fraction >= 0.0 && fraction <= 1.0)) {
+			throw new IllegalArgumentException("Incremental fraction must be in [0, 1], got " + fraction + ".");
+		}
+
+		modelIteration = job.getInt(ExpectationMapper.MODEL_ITERATION_KEY, -1);
+		layoutHash = getLayoutHash(model);
+
+		String splitName = MD5Hash.digest(job.get("map.input.file") + ":" + job.getLong("map.input.start", 0)).toString();
+
+		String previousDirPathStr = job.get(PREVIOUS_STATISTICS_DIR_PATH_KEY);
+		if (previousDirPathStr != null) {
+			FileSystem fs = NativeS3FileSystem.get(URI.create(job.get(ExpectationMapper.BUCKET_URI_KEY)), job);
+			openPreviousBlocks(fs, new Path(previousDirPathStr, splitName + INDEX_FILE_EXTENSION),
+					new Path(previousDirPathStr, splitName + COUNTS_FILE_EXTENSION));
+		}
+
+		selectBlocks(fraction, job.get(SELECTION_KEY, SELECTION_STALENESS));
+
+		// Side files of the task are promoted to the job output when the task commits.
+		Path dirPath = new Path(FileOutputFormat.getWorkOutputPath(job), STATISTICS_DIR_NAME);
+		FileSystem outFs = dirPath.getFileSystem(job);
+		countsOut = outFs.create(new Path(dirPath, splitName + COUNTS_FILE_EXTENSION));
+		indexOut = outFs.create(new Path(dirPath, splitName + INDEX_FILE_EXTENSION));
+	}
+
+	/**
+	 * Reads the index of the stored blocks, unless it is missing or of a model with other states and
+	 * tokens, and opens their counts.
+	 */
+	private void openPreviousBlocks(FileSystem fs, Path indexPath, Path countsPath) throws IOException {
+		if (!fs.exists(indexPath)) {
+			LOGGER.log(Level.INFO, "No stored block counts at " + indexPath + ", computing all blocks.");
+			return;
+		}
+
+		DataInputStream indexIn = fs.open(indexPath);
+		try {
+			if (indexIn.readLong() != layoutHash) {
+				LOGGER.log(Level.INFO, "Stored block counts at " + indexPath + " are of another model, computing all blocks.");
+				return;
+			}
+
+			previousBlocks = new BlockInfo[WritableUtils.readVInt(indexIn)];
+			for (int block = 0; block < previousBlocks.length; block++) {
+				previousBlocks[block] = BlockInfo.read(indexIn);
+			}
+		} finally {
+			indexIn.close();
+		}
+
+		previousCountsIn = fs.open(countsPath);
+	}
+
+	/**
+	 * Selects the given fraction of the stored blocks to recompute, in the order of the given policy.
+	 */
+	private void selectBlocks(double fraction, String selection) {
+		if (!selection.equals(SELECTION_STALENESS) && !selection.equals(SELECTION_LIKELIHOOD_CHANGE)) {
+			throw new IllegalArgumentException("Unknown incremental selection \"" + selection + "\".");
+		}
+
+		final double[] priorities = new double[previousBlocks.length];
+		for (int block = 0; block < previousBlocks.length; block++) {
+			BlockInfo info = previousBlocks[block];
+			int age = modelIteration - info.iteration;
+
+			if (selection.equals(SELECTION_STALENESS)) {
+				priorities[block] = age;
+			} else {
+				priorities[block] = Double.isInfinite(info.logAlphaChange) ? Double.POSITIVE_INFINITY :
+						Math.abs(info.logAlphaChange) / Math.max(1, info.numSequences) * age;
+			}
+		}
+
+		// Highest priority first. Ties are broken by block, so that equally stale blocks go in turn.
+		Integer[] order = new Integer[previousBlocks.length];
+		for (int block = 0; block < order.length; block++) {
+			order[block] = block;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int cmp = Double.compare(priorities[b], priorities[a]);
+				return cmp != 0 ? cmp : a - b;
+			}
+		});
+
+		recomputed = new boolean[previousBlocks.length];
+		int numRecomputed = (int) Math.ceil(fraction * previousBlocks.length);
+		for (int i = 0; i < numRecomputed; i++) {
+			recomputed[order[i]] = true;
+		}
+
+		LOGGER.log(Level.INFO, "Recomputing " + numRecomputed + " of " + previousBlocks.length + " stored blocks.");
+	}
+
+	/**
+	 * Returns true if the given block is to be recomputed, i.e. its sequences need a forward-backward pass.
+	 */
+	public boolean isRecomputed(int block) {
+		return block >= previousBlocks.length || recomputed[block];
+	}
+
+	/**
+	 * Stores the given counts of the given number of sequences as the new counts of the given block, which
+	 * is the next one and must be recomputed.
+	 */
+	public void putRecomputedBlock(int block, ExpectedCounts blockCounts, int numSequences) throws IOException {
+		BlockInfo info = new BlockInfo(modelIteration, numSequences, blockCounts.getTotalLogAlpha(), Double.POSITIVE_INFINITY);
+
+		if (block < previousBlocks.length) {
+			readBlockCounts(); // The old counts are replaced.
+			info.logAlphaChange = info.logAlpha - previousBlocks[block].logAlpha;
+		}
+
+		outputBuffer.reset();
+		writeCounts(blockCounts, outputBuffer);
+		writeBlockCounts(outputBuffer.getData(), outputBuffer.getLength());
+		blocks.add(info);
+	}
+
+	/**
+	 * Adds the stored counts and alpha of the given block, which is the next one and must not be
+	 * recomputed, to the given counts, and keeps them for the next iteration. Returns its number of sequences.
+	 */
+	public int addStoredBlock(int block, ExpectedCounts counts) throws IOException {
+		int length = readBlockCounts();
+		inputBuffer.reset(bytes, length);
+		readCounts(inputBuffer, counts);
+		counts.addLogAlpha(previousBlocks[block].logAlpha);
+
+		writeBlockCounts(bytes, length);
+		blocks.add(previousBlocks[block]);
+
+		return previousBlocks[block].numSequences;
+	}
+
+	/**
+	 * Writes the index of the blocks of this iteration, and closes all files.
+	 */
+	public void close() throws IOException {
+		countsOut.close();
+
+		indexOut.writeLong(layoutHash);
+		WritableUtils.writeVInt(indexOut, blocks.size());
+		for (BlockInfo info : blocks) {
+			info.write(indexOut);
+		}
+		indexOut.close();
+
+		if (previousCountsIn != null) {
+			previousCountsIn.close();
+		}
+	}
+
+	/**
+	 * Reads the stored counts of the next block into bytes, and returns their length.
+	 */
+	private int readBlockCounts() throws IOException {
+		int length = previousCountsIn.readInt();
+		if (bytes.length < length) {
+			bytes = new byte[length];
+		}
+		previousCountsIn.readFully(bytes, 0, length);
+
+		return length;
+	}
+
+	private void writeBlockCounts(byte[] data, int length) throws IOException {
+		countsOut.writeInt(length);
+		countsOut.write(data, 0, length);
+	}
+
+	/**
+	 * Writes the non-zero counts of the given counts by model ids.
+	 */
+	private static void writeCounts(ExpectedCounts counts, DataOutputBuffer out) throws IOException {
+		int numStates = counts.getModel().getNumStates();
+
+		double[] startCounts = counts.getStartCounts();
+		for (int toState = 0; toState < numStates; toState++) {
+			writeCount(EMRecordKey.START_STATE_ID, toState, startCounts[toState], out);
+		}
+
+		double[][] transCounts = counts.getTransCounts();
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			for (int toState = 0; toState < numStates; toState++) {
+				writeCount(fromState, toState, transCounts[fromState][toState], out);
+			}
+		}
+		WritableUtils.writeVInt(out, END_OF_SECTION);
+
+		for (int i = 0; i < counts.getNumTouchedTokens(); i++) {
+			int token = counts.getTouchedToken(i);
+			double[] emisCounts = counts.getEmissionCounts(token);
+			for (int state = 0; state < numStates; state++) {
+				writeCount(state, token, emisCounts[state], out);
+			}
+		}
+		WritableUtils.writeVInt(out, END_OF_SECTION);
+	}
+
+	private static void writeCount(int x, int y, double count, DataOutputBuffer out) throws IOException {
+		if (count > 0) {
+			WritableUtils.writeVInt(out, x);
+			WritableUtils.writeVInt(out, y);
+			out.writeDouble(count);
+		}
+	}
+
+	/**
+	 * Adds the counts written by writeCounts() to the given counts.
+	 */
+	private static void readCounts(DataInputBuffer in, ExpectedCounts counts) throws IOException {
+		int x;
+		while (END_OF_SECTION != (x = WritableUtils.readVInt(in))) {
+			int toState = WritableUtils.readVInt(in);
+			double count = in.readDouble();
+			if (x == EMRecordKey.START_STATE_ID) {
+				counts.addStartCount(toState, count);
+			} else {
+				counts.addTransitionCount(x, toState, count);
+			}
+		}
+
+		while (END_OF_SECTION != (x = WritableUtils.readVInt(in))) {
+			int token = WritableUtils.readVInt(in);
+			counts.addEmissionCount(token, x, in.readDouble());
+		}
+	}
+
+	/**
+	 * Returns a hash of the states and tokens of the given model, which their ids depend on.
+	 */
+	private static long getLayoutHash(HmmModel model) {
+		long hash = model.getNumStates();
+		for (int state = 0; state < model.getNumStates(); state++) {
+			hash = 31 * hash + model.getState(state).hashCode();
+		}
+
+		hash = 31 * hash + model.getNumTokens();
+		for (int token = 0; token < model.getNumTokens(); token++) {
+			hash = 31 * hash + model.getToken(token).hashCode();
+		}
+
+		return hash;
+	}
+
+	/**
+	 * What the index keeps about a block: the iteration of the model its counts are of, its number of
+	 * sequences with a non-zero alpha, their total log alpha and how much that changed the last time the
+	 * block was recomputed (infinite if it was computed for the first time).
+	 */
+	private static class BlockInfo {
+
+		private final int iteration;
+		private final int numSequences;
+		private final double logAlpha;
+		private double logAlphaChange;
+
+		public BlockInfo(int iteration, int numSequences, double logAlpha, double logAlphaChange) {
+			this.iteration = iteration;
+			this.numSequences = numSequences;
+			this.logAlpha = logAlpha;
+			this.logAlphaChange = logAlphaChange;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			WritableUtils.writeVInt(out, iteration);
+			WritableUtils.writeVInt(out, numSequences);
+			out.writeDouble(logAlpha);
+			out.writeDouble(logAlphaChange);
+		}
+
+		public static BlockInfo read(DataInputStream in) throws IOException {
+			return new BlockInfo(WritableUtils.readVInt(in), WritableUtils.readVInt(in), in.readDouble(), in.readDouble());
+		}
+	}
+}
@@ -0,0 +1,446 @@
+package edu.dartmouth.hmmem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Runs EM in a single process, for corpora that fit in the memory of one machine, where the launch,
+ * staging and shuffle costs of a MapReduce job per iteration dwarf the actual work. It takes the same
+ * arguments as EMDriver and writes the same output layout (the seed in .../0/, the model and total log
+ * alpha of each iteration in .../<iteration>/ and the Viterbi taggings in .../viterbi/), so either can
+ * be used on the same data. The file system is that of the bucket URI, which may also be a local one,
+ * e.g. "file:///".
+ *
+ * The corpus is read and encoded to the token ids of the vocabulary of the seed emissions once, so
+ * tokens outside of it are tagged as ViterbiMapReduce.ViterbiMapper.UNKNOWN_TOKEN. In each iteration, the E-step runs on a fixed pool of threads, each of which
+ * runs the forward-backward pass over its own contiguous range of the sentences into its own
+ * ExpectedCounts, so the threads share nothing but the immutable model. The ranges hold about the same
+ * number of tokens. The counts of the threads are then added together in order, so the results do not
+ * depend on the scheduling, and normalized into the next model in memory.
+ *
+ * If OnlineEM.ONLINE_BATCH_SIZE_KEY is set, each iteration is instead a pass of stepwise online EM
+ * over the corpus, which updates the model after each mini-batch of that many sentences. The E-step of
+ * a mini-batch is split across the threads like that of the whole corpus. The mini-batches are taken in
+ * a fixed random order of the sentences, since a corpus is often sorted, e.g. by document, and
+ * mini-batches of similar sentences would pull the model back and forth. The total log alpha of a pass
+ * is that of each sentence under the model of its mini-batch.
+ *
+ * The job options of ExpectationMapper (e.g. "e_step_mode=scaled") apply as well, plus NUM_THREADS_KEY,
+ * and EMDriver.RESUME_KEY and EMDriver.INITIAL_MODEL_KEY work as for EMDriver. SQUAREM acceleration,
+ * the incremental E-step and ExpectationMapper.INPUT_MODE_ENCODED are not supported. A resumed online run
+ * starts a new pass with fresh sufficient statistics from the model it resumes from.
+ */
+public class LocalEMEngine {
+
+	private static final Logger LOGGER = Logger.getLogger(LocalEMEngine.class.toString());
+
+	// Number of E-step threads, by default the number of processors.
+	public static final String NUM_THREADS_KEY = "num_threads";
+
+	// Name of the model parameters file of each iteration, as the single reducer of EMDriver would name it.
+	public static final String MODEL_PARAMS_FILE_NAME = "part-00000";
+
+	/**
+	 * Arguments: the same as those of EMDriver.main().
+	 */
+	public static void main(String args[]) throws Exception {
+		if (args.length < 8) {
+			System.err.println("At least 8 arguments must be specified. The arguments given were:");
+			for (int i = 0; i < args.length; i++) {
+				System.err.println("\t" + i + ": " + args[i]);
+			}
+			throw new Exception("At least 8 arguments must be specified. " + args.length + " were passed.");
+		}
+
+		URI bucketURI = new URI(args[1]);
+		String inputDirPathStr = args[2];
+		String outputDirPathStr = args[3];
+		Path transFilePath = new Path(args[4]);
+		Path emisFilePath = new Path(args[5]);
+		double logAlphaConvergence = Double.parseDouble(args[6]);
+		int maxIterations = Integer.parseInt(args[7]);
+
+		EMDriver.parseJobOptions(args, 8);
+		Configuration conf = new Configuration();
+		EMDriver.setJobOptions(conf);
+
+		// Fail rather than silently run plain EM with the full E-step.
+		rejectJobOption(conf, Squarem.ACCELERATION_KEY);
+		rejectJobOption(conf, Squarem.MAX_STEP_LENGTH_KEY);
+		rejectJobOption(conf, IncrementalEStep.INCREMENTAL_FRACTION_KEY);
+		rejectJobOption(conf, IncrementalEStep.BLOCK_SIZE_KEY);
+		rejectJobOption(conf, IncrementalEStep.SELECTION_KEY);
+		// The text corpus is always encoded once in memory.
+		String inputMode = conf.get(ExpectationMapper.INPUT_MODE_KEY, ExpectationMapper.INPUT_MODE_TEXT);
+		if (inputMode.equals(ExpectationMapper.INPUT_MODE_ENCODED)) {
+			throw new Exception("The input mode \"" + inputMode + "\" is not supported by LocalEMEngine.");
+		} else if (!inputMode.equals(ExpectationMapper.INPUT_MODE_TEXT)) {
+			throw new Exception("Unknown input mode \"" + inputMode + "\".");
+		}
+
+		FileSystem fs = FileSystem.get(bucketURI, conf);
+
+		// Create the random seed for the model parameters, as EMDriver does.
+		BufferedReader transFileReader = new BufferedReader(new InputStreamReader(fs.open(transFilePath)));
+		Map<StringPair, Double> transLogProbMap = EMDriver.parsePairFile(transFileReader, true);
+		transFileReader.close();
+
+		BufferedReader emisFileReader = new BufferedReader(new InputStreamReader(fs.open(emisFilePath)));
+		Map<StringPair, Double> emisLogProbMap = EMDriver.parsePairFile(emisFileReader, false);
+		emisFileReader.close();
+
+		String startState = EMDriver.getStartState();
+
+		// The last complete iteration of the run to resume, or -1 to start a new run.
+		int lastIteration = -1;
+		if (Boolean.parseBoolean(conf.get(EMDriver.RESUME_KEY))) {
+			lastIteration = EMDriver.findLastCompleteIteration(fs, outputDirPathStr);
+			if (lastIteration != -1) {
+				LOGGER.log(Level.INFO, "Resuming after iteration " + lastIteration + ".");
+				EMDriver.deleteIncompleteOutput(fs, outputDirPathStr, lastIteration);
+			}
+		}
+
+		// The vocabulary is that of the emissions file either way, so that the Viterbi taggings of a
+		// resumed run are the same.
+		List<String> tokens = new ArrayList<String>();
+		for (StringPair stateToken : emisLogProbMap.keySet()) {
+			tokens.add(stateToken.getY());
+		}
+		Vocabulary vocabulary = Vocabulary.fromTokens(tokens);
+
+		int firstIteration = 1;
+		double prevTotalLogAlpha = Double.NEGATIVE_INFINITY;
+		boolean converged = false;
+		if (lastIteration == -1) {
+			if (conf.get(EMDriver.INITIAL_MODEL_KEY) != null) {
+				Map<StringPair, Double> initialTransLogProbMap = new HashMap<StringPair, Double>();
+				Map<StringPair, Double> initialEmisLogProbMap = new HashMap<StringPair, Double>();
+				ModelFiles.readModelParametersDir(fs, new Path(conf.get(EMDriver.INITIAL_MODEL_KEY)), initialTransLogProbMap,
+						initialEmisLogProbMap);
+				EMDriver.applyInitialModel(transLogProbMap, initialTransLogProbMap);
+				EMDriver.applyInitialModel(emisLogProbMap, initialEmisLogProbMap);
+			}
+
+			writeModel(fs, new Path(outputDirPathStr + "/0/" + EMDriver.EM_MODEL_PARAMS_FILE_NAME), transLogProbMap, emisLogProbMap);
+		} else {
+			firstIteration = lastIteration + 1;
+			int modelIteration = lastIteration;
+			if (lastIteration > 0) {
+				modelIteration = EMDriver.getResumedModelIteration(fs, outputDirPathStr, lastIteration);
+				prevTotalLogAlpha = EMDriver.readPrevTotalLogAlpha(fs, outputDirPathStr, lastIteration);
+				converged = EMDriver.hasConverged(fs, outputDirPathStr, lastIteration, logAlphaConvergence);
+			}
+
+			transLogProbMap = new HashMap<StringPair, Double>();
+			emisLogProbMap = new HashMap<StringPair, Double>();
+			ModelFiles.readModelParametersDir(fs, new Path(outputDirPathStr + "/" + modelIteration + "/"), transLogProbMap,
+					emisLogProbMap);
+		}
+
+		List<int[]> corpus = readCorpus(fs, new Path(inputDirPathStr), vocabulary);
+		int numThreads = conf.getInt(NUM_THREADS_KEY, Runtime.getRuntime().availableProcessors());
+		int[] rangeStarts = makeRanges(corpus, numThreads);
+
+		int onlineBatchSize = conf.getInt(OnlineEM.ONLINE_BATCH_SIZE_KEY, 0);
+		OnlineEM online = null;
+		List<int[]> shuffledCorpus = null;
+		if (onlineBatchSize > 0) {
+			online = new OnlineEM(HmmModel.compile(transLogProbMap, emisLogProbMap, startState, vocabulary),
+					conf.getFloat(OnlineEM.STEP_EXPONENT_KEY, OnlineEM.DEFAULT_STEP_EXPONENT));
+			shuffledCorpus = new ArrayList<int[]>(corpus);
+			Collections.shuffle(shuffledCorpus, new Random(0));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			// Conduct the EM.
+			for (int i = firstIteration; !converged && (i <= maxIterations || maxIterations < 0); i++) {
+				LOGGER.log(Level.INFO, "Running EM iteration " + i + "!");
+
+				ExpectedCounts counts;
+				double totalLogAlpha;
+				if (online != null) {
+					totalLogAlpha = runOnlinePass(executor, online, shuffledCorpus, onlineBatchSize, numThreads, conf);
+					counts = online.getStats();
+				} else {
+					HmmModel model = HmmModel.compile(transLogProbMap, emisLogProbMap, startState, vocabulary);
+					EStepResult result = runEStep(executor, model, corpus, rangeStarts, conf);
+					counts = result.counts;
+					totalLogAlpha = result.numSequences == 0 ? Double.NEGATIVE_INFINITY : result.counts.getTotalLogAlpha();
+				}
+
+				if (totalLogAlpha == Double.NEGATIVE_INFINITY) {
+					// The convergence test would compare -Infinity with itself and never stop.
+					throw new Exception("The model of iteration " + i + " cannot generate any sequence of the corpus.");
+				}
+
+				transLogProbMap = counts.makeTransitionLogCountMap();
+				emisLogProbMap = counts.makeEmissionLogCountMap();
+				StaticUtil.normalizeLogProbMap(transLogProbMap);
+				StaticUtil.normalizeLogProbMap(emisLogProbMap);
+
+				writeModel(fs, new Path(outputDirPathStr + "/" + i + "/" + MODEL_PARAMS_FILE_NAME), transLogProbMap, emisLogProbMap);
+
+				FSDataOutputStream alphaOut = fs.create(new Path(outputDirPathStr + "/" + i + "/" + EMDriver.TOTAL_LOG_ALPHA_FILE_NAME), false);
+				alphaOut.write(EMModelParameter.makeAlphaObject(totalLogAlpha).toString().getBytes());
+				alphaOut.close();
+
+				System.err.println("Total log alpha for iteration " + i + ": " + totalLogAlpha);
+
+				if (totalLogAlpha - prevTotalLogAlpha < logAlphaConvergence) {
+					break;
+				} else {
+					prevTotalLogAlpha = totalLogAlpha;
+				}
+			}
+
+			// Tag the corpus with the final model.
+			HmmModel finalModel = HmmModel.compile(transLogProbMap, emisLogProbMap, startState, vocabulary);
+			runViterbi(executor, finalModel, corpus, rangeStarts, fs, new Path(outputDirPathStr + "/viterbi/" + MODEL_PARAMS_FILE_NAME));
+		} finally {
+			executor.shutdown();
+		}
+
+		fs.close();
+	}
+
+	/**
+	 * Throws if the given job option of EMDriver is set, since the local engine does not support it.
+	 */
+	private static void rejectJobOption(Configuration conf, String key) throws Exception {
+		if (conf.get(key) != null) {
+			throw new Exception("The job option \"" + key + "\" is not supported by LocalEMEngine.");
+		}
+	}
+
+	/**
+	 * Runs the E-step of the corpus under the given model, with one task per range of sentences, and
+	 * returns the sum of the counts of the tasks.
+	 */
+	private static EStepResult runEStep(ExecutorService executor, final HmmModel model, final List<int[]> corpus,
+			int[] rangeStarts, final Configuration conf) throws Exception {
+		List<Future<EStepResult>> futures = new ArrayList<Future<EStepResult>>();
+
+		for (int t = 0; t + 1 < rangeStarts.length; t++) {
+			final int start = rangeStarts[t];
+			final int end = rangeStarts[t+1];
+
+			futures.add(executor.submit(new Callable<EStepResult>() {
+				@Override
+				public EStepResult call() {
+					EStepResult result = new EStepResult(new ExpectedCounts(model));
+					ForwardBackward forwardBackward = ExpectationMapper.makeForwardBackward(model, conf);
+
+					for (int s = start; s < end; s++) {
+						int[] encodedObservationSequence = corpus.get(s);
+
+						double logAlpha = forwardBackward.calculateForward(encodedObservationSequence, encodedObservationSequence.length);
+						if (logAlpha == Double.NEGATIVE_INFINITY) {
+							continue; // The model cannot generate the sequence, so it contributes no counts.
+						}
+
+						result.counts.addLogAlpha(logAlpha);
+						forwardBackward.accumulateCounts(logAlpha, result.counts);
+						result.numSequences++;
+					}
+
+					return result;
+				}
+			}));
+		}
+
+		EStepResult total = null;
+		for (Future<EStepResult> future : futures) {
+			EStepResult result = getResult(future);
+			if (total == null) {
+				total = result;
+			} else {
+				total.counts.add(result.counts);
+				total.numSequences += result.numSequences;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * Runs a pass of stepwise online EM over the corpus, updating the model after each mini-batch of
+	 * batchSize sentences, and returns the total log alpha of the sentences under the models of their
+	 * mini-batches, or log(0) if none of them could be generated.
+	 */
+	private static double runOnlinePass(ExecutorService executor, OnlineEM online, List<int[]> corpus, int batchSize,
+			int numThreads, Configuration conf) throws Exception {
+		double totalLogAlpha = 0.0;
+		int numSequences = 0;
+
+		for (int start = 0; start < corpus.size(); start += batchSize) {
+			List<int[]> batch = corpus.subList(start, Math.min(start + batchSize, corpus.size()));
+			EStepResult result = runEStep(executor, online.getModel(), batch, makeRanges(batch, numThreads), conf);
+
+			if (result.numSequences > 0) {
+				online.update(result.counts);
+				totalLogAlpha += result.counts.getTotalLogAlpha();
+				numSequences += result.numSequences;
+			}
+		}
+
+		return numSequences == 0 ? Double.NEGATIVE_INFINITY : totalLogAlpha;
+	}
+
+	/**
+	 * Tags the corpus with the given model, with one task per range of sentences, and writes the taggings
+	 * in corpus order to the given file.
+	 */
+	private static void runViterbi(ExecutorService executor, final HmmModel model, final List<int[]> corpus,
+			int[] rangeStarts, FileSystem fs, Path viterbiPath) throws Exception {
+		final TaggedObservationSequence[] taggings = new TaggedObservationSequence[corpus.size()];
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+		for (int t = 0; t + 1 < rangeStarts.length; t++) {
+			final int start = rangeStarts[t];
+			final int end = rangeStarts[t+1];
+
+			futures.add(executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() {
+					for (int s = start; s < end; s++) {
+						taggings[s] = ViterbiMapReduce.ViterbiMapper.calculateViterbiTagging(corpus.get(s), corpus.get(s).length, model);
+					}
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Object> future : futures) {
+			getResult(future);
+		}
+
+		PrintStream out = new PrintStream(fs.create(viterbiPath, false), false, "UTF-8");
+		for (TaggedObservationSequence tagging : taggings) {
+			out.println(tagging);
+		}
+		out.close();
+	}
+
+	/**
+	 * Returns the result of the given task, rethrowing what it threw.
+	 */
+	private static <T> T getResult(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the observation sequences (one per line) of all the files in the given directory and encodes
+	 * them to the token ids of the given vocabulary, skipping blank lines as ExpectationMapper does.
+	 */
+	private static List<int[]> readCorpus(FileSystem fs, Path inputDirPath, Vocabulary vocabulary) throws IOException {
+		List<int[]> corpus = new ArrayList<int[]>();
+		ByteTokenizer tokenizer = new ByteTokenizer(vocabulary.getTokenIndex());
+		Text line = new Text();
+
+		for (FileStatus fileStatus : fs.listStatus(inputDirPath)) {
+			String name = fileStatus.getPath().getName();
+			if (fileStatus.isDir() || name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+
+			LineReader reader = new LineReader(fs.open(fileStatus.getPath()));
+			while (reader.readLine(line) > 0) {
+				int numTokens = tokenizer.tokenize(line);
+				if (numTokens != 0) {
+					corpus.add(Arrays.copyOf(tokenizer.getTokenIds(), numTokens));
+				}
+			}
+			reader.close();
+		}
+
+		LOGGER.log(Level.INFO, "Read " + corpus.size() + " observation sequences from " + inputDirPath);
+
+		return corpus;
+	}
+
+	/**
+	 * Splits the corpus into at most numRanges contiguous ranges of about the same number of tokens.
+	 * Returns the index of the first sequence of each range, followed by the size of the corpus.
+	 */
+	private static int[] makeRanges(List<int[]> corpus, int numRanges) {
+		long numTokens = 0;
+		for (int[] encodedObservationSequence : corpus) {
+			numTokens += encodedObservationSequence.length;
+		}
+
+		List<Integer> rangeStarts = new ArrayList<Integer>();
+		rangeStarts.add(0);
+
+		long rangeTokens = 0;
+		for (int s = 0; s < corpus.size() && rangeStarts.size() < numRanges; s++) {
+			rangeTokens += corpus.get(s).length;
+			if (rangeTokens * numRanges >= numTokens * rangeStarts.size() && s + 1 < corpus.size()) {
+				rangeStarts.add(s + 1);
+			}
+		}
+		rangeStarts.add(corpus.size());
+
+		int[] starts = new int[rangeStarts.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = rangeStarts.get(i);
+		}
+
+		return starts;
+	}
+
+	/**
+	 * Writes the given transition and emission log prob maps to the given path in the binary format.
+	 */
+	private static void writeModel(FileSystem fs, Path path, Map<StringPair, Double> transLogProbMap,
+			Map<StringPair, Double> emisLogProbMap) throws IOException {
+		EMDriver.outputBinaryEMModelParams(transLogProbMap, emisLogProbMap, fs.create(path, false));
+	}
+
+	/**
+	 * The counts of a range of sentences, and the number of those the model could generate.
+	 */
+	private static class EStepResult {
+
+		private final ExpectedCounts counts;
+		private int numSequences = 0;
+
+		public EStepResult(ExpectedCounts counts) {
+			this.counts = counts;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package edu.dartmouth.hmmem;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Combiner for the expectation step.
+ * Input -
+ * key: EMRecordKey of a transition or emission
+ * value: log count
+ *
+ * Output -
+ * the same, with one log count per key.
+ *
+ * The combiner runs with the full sort order of EMRecordKey, so each call gets the counts of a single
+ * parameter. It sums the expected counts of a transition or emission (i.e. log-sums their log
+ * counts). Its output has the same form as its input and sums the same way in the reducer, so Hadoop
+ * may run it any number of times.
+ */
+public class LogCountCombiner extends MapReduceBase implements Reducer<EMRecordKey, DoubleWritable, EMRecordKey, DoubleWritable> {
+
+	@Override
+	public void reduce(EMRecordKey key, Iterator<DoubleWritable> logCounts,
+			OutputCollector<EMRecordKey, DoubleWritable> output, Reporter reporter)
+			throws IOException {
+		// Hadoop reuses the value object, so it can be output with the total once the values run out.
+		DoubleWritable logCount = logCounts.next();
+		double totalLogCount = logCount.get();
+
+		while (logCounts.hasNext()) {
+			totalLogCount = StaticUtil.calcLogSumOfLogs(totalLogCount, logCounts.next().get());
+		}
+
+		logCount.set(totalLogCount);
+		output.collect(key, logCount);
+	}
+}
@@ -1,21 +1,12 @@
 package edu.dartmouth.hmmem;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -25,126 +16,169 @@ import org.apache.hadoop.mapred.Reporter;
 /**
  * Reducer to perform maximization step.
  * Input - 
- * key: state (either start of transition, state for emission, or dummy state for alpha)
- * value: EMModelParameter object representing transition, emission, or alpha dummy with log counts
+ * key: EMRecordKey of a transition or emission of a state (either start of transition or state for emission)
+ * value: log count of the parameter of the key
  * 
  * Output -
- * key: state (either start of transition or state for emission, but no dummy state for alpha)
+ * key: state (either start of transition or state for emission)
  * value: EMModelParameter object
  * 
  * The reducer works by taking the expected log counts for transitionLogCounts that start on the
  * given state (i.e. the input key) or emissionLogCounts for the state and normalizing (sum of probabilities == 1) to
  * get new model parameters. 
  *
- * The reducer that receives the alphas from the mappers will multiply them together to produce
- * total alpha and will output this to a specially named file in the output file path directory.
+ * The keys are sorted and grouped by (state, type, second id), so each reduce() call gets the counts
+ * of one parameter, which may come from many mappers, and the parameters of a state arrive in
+ * consecutive calls. (The key passed to reduce() is that of the first value of the group, so a
+ * grouping by state alone would not tell the parameter of each value.) The summed count of each
+ * parameter goes into a compact buffer per parameter type, and the rows of a state are normalized
+ * and output once the next state starts, or in close() for the last one. The keys hold ids of the
+ * compiled model of the iteration, which the reducer loads as well to map them back to state and
+ * token names in its output.
+ *
+ * The emissions of hot states are split across reducers by SkewAwarePartitioner. The reducer of a part
+ * of such a row outputs the summed log counts as they are, and the driver normalizes the row once the
+ * job is done.
  */
 
-public class MaximizationReducer extends MapReduceBase implements Reducer<Text, EMModelParameter, NullWritable, EMModelParameter> {
+public class MaximizationReducer extends MapReduceBase implements Reducer<EMRecordKey, DoubleWritable, NullWritable, EMModelParameter> {
 
-	public static final String TOTAL_LOG_ALPHA_FILE_NAME = "total_log_alpha.txt";
-	
-	private String outputPathStr;
-	private URI bucketURI;
+	private HmmModel model;
+	private final SkewAwarePartitioner partitioner = new SkewAwarePartitioner();
 
 	private boolean failure = false;
 	private String failureString;
+
+	// The summed log counts of the state of the last reduce() call, which are output once its last
+	// parameter has arrived. Reused from one state to the next.
+	private final LogCountBuffer transLogCounts = new LogCountBuffer();
+	private final LogCountBuffer emisLogCounts = new LogCountBuffer();
+	private boolean hasState = false;
+	private int stateId;
+	private OutputCollector<NullWritable, EMModelParameter> output;
 	
 	@Override
-	public void reduce(Text key, Iterator<EMModelParameter> expectedCounts,
+	public void reduce(EMRecordKey key, Iterator<DoubleWritable> expectedCounts,
 			OutputCollector<NullWritable, EMModelParameter> output, Reporter reporter)
 			throws IOException {
 		if (failure) {
 			throw new IOException(failureString);
 		}
+
+		this.output = output;
+
+		if (hasState && key.getStateId() != stateId) {
+			outputState();
+		}
+		hasState = true;
+		stateId = key.getStateId();
 		
-		Map<StringPair, Double> transLogCounts = new HashMap<StringPair, Double>();
-		Map<StringPair, Double> emisLogCounts = new HashMap<StringPair, Double>();
-		
-		Double totalLogAlpha = 0.0;
-		boolean alphaOutput = false;
-		
-		// Aggregate the counts.
+		// Sum the counts of the parameter.
+		double logCount = expectedCounts.next().get();
 		while (expectedCounts.hasNext()) {
-			EMModelParameter expectedCount = expectedCounts.next();
-			switch (expectedCount.getParameterType()) {
-			case EMModelParameter.PARAMETER_TYPE_TRANSITION:
-				transLogCounts.put(StringPair.stringPairFromEMModelParameter(expectedCount), expectedCount.getLogCount());
-				break;
-			case EMModelParameter.PARAMETER_TYPE_EMISSION:
-				emisLogCounts.put(StringPair.stringPairFromEMModelParameter(expectedCount), expectedCount.getLogCount());				
-				break;
-			case EMModelParameter.TYPE_ALPHA:
-				totalLogAlpha = StaticUtil.calcLogProductOfLogs(totalLogAlpha, expectedCount.getLogCount());
-				alphaOutput = true;
-				break;
-			}
+			logCount = StaticUtil.calcLogSumOfLogs(logCount, expectedCounts.next().get());
 		}
-		
-		// Normalize the counts to get the new model probabilities.
-		StaticUtil.normalizeLogProbMap(transLogCounts);
-		StaticUtil.normalizeLogProbMap(emisLogCounts);
-		
-		// Output the new model parameters to be used by the next iteration or the final model.
-		outputTransitionLogCounts(transLogCounts, output);
-		outputEmissionLogCounts(emisLogCounts, output);
-		
-		// Output the total log alpha if appropriate.
-		if (alphaOutput) {
-			String totalLogAlphaPathStr = outputPathStr + "/" + TOTAL_LOG_ALPHA_FILE_NAME;
-			Path totalLogAlphaPath = new Path(totalLogAlphaPathStr);
-			
-			FileSystem fs = NativeS3FileSystem.get(bucketURI, new Configuration());
-			FSDataOutputStream totalLogAlphaOut = fs.create(totalLogAlphaPath, false);
-			
-			EMModelParameter totalLogAlphaObject = EMModelParameter.makeAlphaObject(totalLogAlpha);
-			totalLogAlphaOut.write(totalLogAlphaObject.toString().getBytes());
-			
-			totalLogAlphaOut.close();
+
+		switch (key.getParameterType()) {
+		case EMModelParameter.PARAMETER_TYPE_TRANSITION:
+			transLogCounts.add(key.getSecondId(), logCount);
+			break;
+		case EMModelParameter.PARAMETER_TYPE_EMISSION:
+			emisLogCounts.add(key.getSecondId(), logCount);
+			break;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (hasState) {
+			outputState();
 		}
 	}
+
+	/**
+	 * Normalizes the counts of the current state to get the new model probabilities, and outputs them
+	 * to be used by the next iteration or the final model.
+	 */
+	private void outputState() throws IOException {
+		Text state = new Text(stateId == EMRecordKey.START_STATE_ID ? model.getStartState() : model.getState(stateId));
+		outputNormalizedLogCounts(state, transLogCounts, output, EMModelParameter.PARAMETER_TYPE_TRANSITION);
+		if (partitioner.isEmissionSplit(stateId)) {
+			outputLogCounts(state, emisLogCounts, output, EMModelParameter.PARAMETER_TYPE_EMISSION, 0.0);
+		} else {
+			outputNormalizedLogCounts(state, emisLogCounts, output, EMModelParameter.PARAMETER_TYPE_EMISSION);
+		}
+
+		transLogCounts.clear();
+		emisLogCounts.clear();
+		hasState = false;
+	}
 	
 	@Override
 	public void configure(JobConf job) {
 		super.configure(job);
 		
-		outputPathStr = FileOutputFormat.getOutputPath(job).toString();
-		
 		try {
-			bucketURI = new URI(job.get(ExpectationMapper.BUCKET_URI_KEY));
-		} catch (URISyntaxException e) {
+			model = ModelFiles.getCompiledModel(job, job.get(ExpectationMapper.BUCKET_URI_KEY),
+					job.get(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY), job.get(ExpectationMapper.START_STATE_KEY));
+			partitioner.plan(model, job.getNumReduceTasks(), job.getFloat(SkewAwarePartitioner.HOT_STATE_FACTOR_KEY,
+					SkewAwarePartitioner.DEFAULT_HOT_STATE_FACTOR));
+		} catch (Exception e) {
 			failure = true;
 			failureString = e.toString();
 		}
 	}
 	
 	/**
-	 * Outputs the transition log counts as EMModelParameters.
+	 * Outputs the log counts of the buffer, divided by their sum, as EMModelParameters of the given state.
 	 */
-	private static void outputTransitionLogCounts(Map<StringPair, Double> transLogCounts, OutputCollector<NullWritable, EMModelParameter> output) throws IOException {
-		outputLogCounts(transLogCounts, output, EMModelParameter.PARAMETER_TYPE_TRANSITION);
+	private void outputNormalizedLogCounts(Text state, LogCountBuffer logCounts,
+			OutputCollector<NullWritable, EMModelParameter> output, char parameterType) throws IOException {
+		double logTotal = StaticUtil.calcLogSumOfLogs(logCounts.logCounts, 0, logCounts.size);
+		outputLogCounts(state, logCounts, output, parameterType, logTotal);
 	}
-	
+
 	/**
-	 * Outputs the emission log counts as EMModelParameters.
+	 * Outputs the log counts of the buffer, minus the given log total, as EMModelParameters of the given state.
 	 */
-	private static void outputEmissionLogCounts(Map<StringPair, Double> emisLogCounts, OutputCollector<NullWritable, EMModelParameter> output) throws IOException {
-		outputLogCounts(emisLogCounts, output, EMModelParameter.PARAMETER_TYPE_EMISSION);
+	private void outputLogCounts(Text state, LogCountBuffer logCounts,
+			OutputCollector<NullWritable, EMModelParameter> output, char parameterType, double logTotal) throws IOException {
+		for (int i = 0; i < logCounts.size; i++) {
+			// The second id of a transition is a state id, that of an emission a token id.
+			int yId = logCounts.yIds[i];
+			Text y = new Text(parameterType == EMModelParameter.PARAMETER_TYPE_TRANSITION ? model.getState(yId) : model.getToken(yId));
+			EMModelParameter param = new EMModelParameter(parameterType, state, y,
+					logCounts.logCounts[i] - logTotal);
+			output.collect(NullWritable.get(), param);
+		}
 	}
-	
+
 	/**
-	 * Outputs the log counts as EMModelParameters.
+	 * The summed log counts of the parameters of one type of a state, in the order they arrived, with
+	 * parallel arrays of the second ids and the log counts.
 	 */
-	private static void outputLogCounts(Map<StringPair, Double> logCounts, OutputCollector<NullWritable, EMModelParameter> output,
-			char parameterType) throws IOException {
-		for (Entry<StringPair, Double> entry : logCounts.entrySet()) {
-			if (entry.getValue() != null) { // Only output if prob > 0.
-				EMModelParameter param = new EMModelParameter(parameterType, new Text(entry.getKey().getX()), new Text(entry.getKey().getY()),
-						entry.getValue());
-				System.out.println("Log count: " + entry.getValue());
-				System.out.println("Param: " + param);
-				output.collect(NullWritable.get(), param);
+	private static class LogCountBuffer {
+
+		private int[] yIds = new int[16];
+		private double[] logCounts = new double[16];
+		private int size = 0;
+
+		/**
+		 * Adds the summed log count of a parameter.
+		 */
+		public void add(int yId, double logCount) {
+			if (size == yIds.length) {
+				yIds = Arrays.copyOf(yIds, size * 2);
+				logCounts = Arrays.copyOf(logCounts, size * 2);
 			}
+
+			yIds[size] = yId;
+			logCounts[size] = logCount;
+			size++;
+		}
+
+		public void clear() {
+			size = 0;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,223 @@
+package edu.dartmouth.hmmem;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Static methods for reading the model parameters files of an EM iteration, in either the text format
+ * (lines of EMModelParameter.toString()) or the binary format of BinaryModelFile.
+ *
+ * The driver registers the model parameters files of a job in the DistributedCache, so that each node
+ * downloads them once and every task reads them from local disk. Tasks of jobs without cached model
+ * files read the model parameters directory on S3 directly.
+ *
+ * Compiled models are also cached for the life of the JVM. With JVM reuse
+ * (mapred.job.reuse.jvm.num.tasks), only the first task of a job in each JVM loads the model, and the
+ * later ones get the same HmmModel, which is immutable and so can be shared.
+ */
+public class ModelFiles {
+
+	private static final Logger LOGGER = Logger.getLogger(ModelFiles.class.toString());
+
+	// The last compiled model and what it was loaded from. Only one model is cached, since a reused JVM
+	// only runs tasks of one job, so loading another model evicts the one of the previous iteration.
+	private static String cachedModelKey = null;
+	private static HmmModel cachedModel = null;
+
+	/**
+	 * Returns the compiled model of a task, reading and compiling its model parameters as in
+	 * readModelParameters() unless a previous task in this JVM used the same ones. The model has the
+	 * token ids of the vocabulary of the job, if it has one (see getVocabulary()). The cache is keyed by
+	 * the model parameters directory, the iteration of the model (ExpectationMapper.MODEL_ITERATION_KEY),
+	 * the start state and the vocabulary.
+	 */
+	public static synchronized HmmModel getCompiledModel(JobConf job, String bucketURIStr, String modelParametersDirPathStr,
+			String startState) throws Exception {
+		String modelKey = modelParametersDirPathStr + " " + job.getInt(ExpectationMapper.MODEL_ITERATION_KEY, -1)
+				+ " " + startState + " " + job.get(ExpectationMapper.VOCABULARY_PATH_KEY);
+		if (modelKey.equals(cachedModelKey)) {
+			LOGGER.log(Level.INFO, "Reusing the compiled model of " + modelKey);
+			return cachedModel;
+		}
+
+		// Evict the old model first, so that it can be collected while the new one loads.
+		cachedModelKey = null;
+		cachedModel = null;
+
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		readModelParameters(job, bucketURIStr, modelParametersDirPathStr, transLogProbMap, emisLogProbMap);
+
+		HmmModel model = HmmModel.compile(transLogProbMap, emisLogProbMap, startState, getVocabulary(job));
+		cachedModelKey = modelKey;
+		cachedModel = model;
+
+		return model;
+	}
+
+	/**
+	 * Returns the vocabulary of the given job, or null if it has none. Reads the local copy of the
+	 * vocabulary file in the DistributedCache if there is one, and otherwise the file at
+	 * ExpectationMapper.VOCABULARY_PATH_KEY in the bucket of the job.
+	 */
+	public static Vocabulary getVocabulary(JobConf job) throws Exception {
+		String vocabularyPathStr = job.get(ExpectationMapper.VOCABULARY_PATH_KEY);
+		if (vocabularyPathStr == null) {
+			return null;
+		}
+
+		FileSystem fs = null;
+		Path vocabularyPath = null;
+
+		Path[] localCacheFiles = DistributedCache.getLocalCacheFiles(job);
+		if (localCacheFiles != null) {
+			for (Path localCacheFile : localCacheFiles) {
+				if (localCacheFile.getName().equals(CorpusEncoder.VOCABULARY_FILE_NAME)) {
+					fs = FileSystem.getLocal(job);
+					vocabularyPath = localCacheFile;
+				}
+			}
+		}
+
+		if (vocabularyPath == null) {
+			fs = NativeS3FileSystem.get(new URI(job.get(ExpectationMapper.BUCKET_URI_KEY)), new Configuration());
+			vocabularyPath = new Path(vocabularyPathStr);
+		}
+
+		LOGGER.log(Level.INFO, "Reading vocabulary file: " + vocabularyPath);
+
+		InputStream vocabularyIn = fs.open(vocabularyPath);
+		try {
+			return Vocabulary.read(vocabularyIn);
+		} finally {
+			vocabularyIn.close();
+		}
+	}
+
+	/**
+	 * Returns true if the given file of a model parameters directory holds model parameters, i.e. it is
+	 * neither the total log alpha file, nor the vocabulary file, nor one of the files and directories
+	 * Hadoop adds to job outputs (such as _logs and _SUCCESS).
+	 */
+	public static boolean isModelParametersFile(FileStatus fileStatus) {
+		String name = fileStatus.getPath().getName();
+
+		return !fileStatus.isDir() && !name.equals(EMDriver.TOTAL_LOG_ALPHA_FILE_NAME)
+				&& !name.equals(CorpusEncoder.VOCABULARY_FILE_NAME)
+				&& !name.startsWith("_") && !name.startsWith(".");
+	}
+
+	/**
+	 * Adds the model parameters files in the given directory to the DistributedCache of the given job.
+	 */
+	public static void addModelParametersDirToCache(FileSystem fs, Path modelParametersDirPath, JobConf conf) throws IOException {
+		for (FileStatus modelParameterFileStatus : fs.listStatus(modelParametersDirPath)) {
+			if (isModelParametersFile(modelParameterFileStatus)) {
+				DistributedCache.addCacheFile(modelParameterFileStatus.getPath().toUri(), conf);
+			}
+		}
+	}
+
+	/**
+	 * Reads the model parameters of a task and fills in the transition and emission log probabilities
+	 * maps. Reads the local copies of the model parameters files in the
+	 * DistributedCache if there are any, and otherwise the given model parameters directory in the
+	 * given bucket.
+	 */
+	public static void readModelParameters(JobConf job, String bucketURIStr, String modelParametersDirPathStr,
+			Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap) throws Exception {
+		Path[] localCacheFiles = DistributedCache.getLocalCacheFiles(job);
+
+		if (localCacheFiles != null && localCacheFiles.length > 0) {
+			FileSystem localFs = FileSystem.getLocal(job);
+
+			for (Path localCacheFile : localCacheFiles) {
+				FileStatus localCacheFileStatus = localFs.getFileStatus(localCacheFile);
+				if (isModelParametersFile(localCacheFileStatus)) {
+					LOGGER.log(Level.INFO, "Parsing cached model parameters file: " + localCacheFile);
+
+					InputStream modelParametersIn = localFs.open(localCacheFile);
+					try {
+						readModelParametersFile(modelParametersIn, transLogProbMap, emisLogProbMap);
+					} finally {
+						modelParametersIn.close();
+					}
+				}
+			}
+		} else {
+			FileSystem fs = NativeS3FileSystem.get(new URI(bucketURIStr), new Configuration());
+			readModelParametersDir(fs, new Path(modelParametersDirPathStr), transLogProbMap, emisLogProbMap);
+		}
+	}
+
+	/**
+	 * Reads all the model parameters files in the given directory and fills in the transition and
+	 * emission log probabilities maps.
+	 */
+	public static void readModelParametersDir(FileSystem fs, Path modelParametersDirPath,
+			Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap) throws Exception {
+		for (FileStatus modelParameterFileStatus : fs.listStatus(modelParametersDirPath)) {
+			if (isModelParametersFile(modelParameterFileStatus)) {
+				LOGGER.log(Level.INFO, "Parsing model parameters file: " + modelParameterFileStatus.getPath());
+
+				InputStream modelParametersIn = fs.open(modelParameterFileStatus.getPath());
+				try {
+					readModelParametersFile(modelParametersIn, transLogProbMap, emisLogProbMap);
+				} finally {
+					modelParametersIn.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the given model parameters file, detecting its format from its first bytes, and fills in
+	 * the transition and emission log probabilities maps.
+	 */
+	public static void readModelParametersFile(InputStream inputStream, Map<StringPair, Double> transLogProbMap,
+			Map<StringPair, Double> emisLogProbMap) throws Exception {
+		BufferedInputStream in = new BufferedInputStream(inputStream, 1 << 16);
+
+		in.mark(BinaryModelFile.MAGIC.length);
+		byte[] header = new byte[BinaryModelFile.MAGIC.length];
+		int headerLength = readFully(in, header);
+
+		if (BinaryModelFile.hasMagic(header, headerLength)) {
+			BinaryModelFile.readRecords(in, transLogProbMap, emisLogProbMap);
+		} else {
+			in.reset();
+			StaticUtil.readModelParametersFile(in, transLogProbMap, emisLogProbMap);
+		}
+	}
+
+	/**
+	 * Reads up to buffer.length bytes, stopping early only at the end of the stream, and returns the
+	 * number of bytes read.
+	 */
+	private static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int length = 0;
+		while (length < buffer.length) {
+			int numRead = in.read(buffer, length, buffer.length - length);
+			if (numRead == -1) {
+				break;
+			}
+			length += numRead;
+		}
+
+		return length;
+	}
+}
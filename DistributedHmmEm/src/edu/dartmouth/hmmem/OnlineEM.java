@@ -0,0 +1,139 @@
+package edu.dartmouth.hmmem;
+
+/**
+ * Stepwise online EM (Liang and Klein, "Online EM for Unsupervised Models", 2009). Rather than
+ * re-estimating the model once per pass over the corpus, the expected counts of each mini-batch of
+ * observation sequences are interpolated into running sufficient statistics,
+ * 		stats = (1 - stepSize) * stats + stepSize * batchCounts, with stepSize = (k + 2)^-stepExponent
+ * for the k-th update, and the model is re-estimated from the statistics right away. So the model
+ * improves many times per pass. Any exponent in (0.5, 1] converges; smaller ones forget the counts of
+ * old mini-batches faster.
+ *
+ * The statistics start out as the probabilities of the initial model, so that a parameter without
+ * counts in the first mini-batches keeps a small probability rather than being pruned for good. They
+ * are kept as stored counts times a common scale, so that an update only touches the counts of the
+ * mini-batch and the scale, rather than the whole table. The stored counts are rescaled when the
+ * scale gets tiny.
+ *
+ * Each update re-estimates the whole model, so a mini-batch should hold enough tokens to make that
+ * cheap in comparison. Instances are not thread safe.
+ */
+public class OnlineEM {
+
+	// Number of observation sequences per mini-batch. Unset or 0 runs batch EM.
+	public static final String ONLINE_BATCH_SIZE_KEY = "online_batch_size";
+	// Exponent of the decay of the step size, in (0.5, 1].
+	public static final String STEP_EXPONENT_KEY = "online_step_exponent";
+	public static final float DEFAULT_STEP_EXPONENT = 0.7f;
+
+	private static final double MIN_SCALE = 1e-100;
+
+	private final double stepExponent;
+
+	// The sufficient statistics are stats times scale.
+	private final ExpectedCounts stats;
+	private double scale = 1.0;
+
+	private int numUpdates;
+	private HmmModel model;
+
+	public OnlineEM(HmmModel initialModel, double stepExponent) {
+		this(initialModel, stepExponent, 0);
+	}
+
+	/**
+	 * Starts as if numPriorUpdates updates had already been made, so that the step sizes go on
+	 * decreasing from those of earlier passes, whose statistics are summed up by the initial model.
+	 */
+	public OnlineEM(HmmModel initialModel, double stepExponent, int numPriorUpdates) {
+		if (!(stepExponent > 0.5 && stepExponent <= 1.0)) {
+			throw new IllegalArgumentException("Step exponent must be in (0.5, 1], got " + stepExponent + ".");
+		}
+
+		this.stepExponent = stepExponent;
+		this.numUpdates = numPriorUpdates;
+		this.model = initialModel;
+
+		stats = new ExpectedCounts(initialModel);
+		addProbs(initialModel, stats);
+	}
+
+	/**
+	 * Interpolates the given expected counts of a mini-batch, which must be of the current model, into
+	 * the sufficient statistics and re-estimates the model from them.
+	 */
+	public void update(ExpectedCounts batchCounts) {
+		double stepSize = getStepSize();
+
+		scale *= 1.0 - stepSize;
+		stats.add(batchCounts, stepSize / scale);
+		if (scale < MIN_SCALE) {
+			stats.scale(scale);
+			scale = 1.0;
+		}
+
+		numUpdates++;
+		model = model.reestimate(stats);
+	}
+
+	/**
+	 * Returns the model re-estimated after the last update, or the initial model before the first.
+	 */
+	public HmmModel getModel() {
+		return model;
+	}
+
+	/**
+	 * Returns the number of updates made, including the prior ones.
+	 */
+	public int getNumUpdates() {
+		return numUpdates;
+	}
+
+	/**
+	 * Returns the step size of the next update.
+	 */
+	public double getStepSize() {
+		return Math.pow(numUpdates + 2, -stepExponent);
+	}
+
+	/**
+	 * Returns the sufficient statistics, as expected counts of the model. Their alpha is meaningless.
+	 */
+	public ExpectedCounts getStats() {
+		if (scale != 1.0) {
+			stats.scale(scale);
+			scale = 1.0;
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Adds the probabilities of the given model to the given counts of it.
+	 */
+	private static void addProbs(HmmModel model, ExpectedCounts counts) {
+		int numStates = model.getNumStates();
+
+		double[] startLogProbs = model.getStartLogProbs();
+		for (int toState = 0; toState < numStates; toState++) {
+			counts.addStartCount(toState, Math.pow(2, startLogProbs[toState]));
+		}
+
+		int[] succOffsets = model.getSuccOffsets();
+		int[] succStates = model.getSuccStates();
+		double[] succLogProbs = model.getSuccLogProbs();
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			for (int succ = succOffsets[fromState]; succ < succOffsets[fromState+1]; succ++) {
+				counts.addTransitionCount(fromState, succStates[succ], Math.pow(2, succLogProbs[succ]));
+			}
+		}
+
+		for (int token = 0; token < model.getNumTokens(); token++) {
+			double[] emissionColumn = model.getEmissionColumn(token);
+			for (int state : model.getAllowedStates(token)) {
+				counts.addEmissionCount(token, state, Math.pow(2, emissionColumn[state]));
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package edu.dartmouth.hmmem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * Partitioner of the EM job that balances the work of the reducers, which is proportional to the
+ * number of parameters of the states they get.
+ *
+ * The size of each state is estimated from the model of the previous iteration, which every task of
+ * the job compiles anyway: its number of non-zero transitions plus its number of non-zero emissions.
+ * The states are then assigned to reducers with the longest processing time first heuristic, i.e.
+ * from the largest to the smallest, each to the reducer with the least work so far. Every task
+ * computes the same assignment, since it only depends on the model and the number of reducers.
+ *
+ * A state whose emissions alone are more than HOT_STATE_FACTOR_KEY times the average work of a
+ * reducer (such as a noun tag with most of the vocabulary) is hot: its emission counts are split by
+ * token into salted parts, which are assigned like separate states. The reducer of each part sums
+ * its counts but cannot normalize them, since it only sees part of the row, so it outputs the summed
+ * log counts, and EMDriver normalizes the emission rows of the job output afterwards. The
+ * transitions of a hot state stay with its first part and are normalized by its reducer as usual.
+ * Splitting is off by default.
+ */
+public class SkewAwarePartitioner implements Partitioner<EMRecordKey, DoubleWritable> {
+
+	private static final Logger LOGGER = Logger.getLogger(SkewAwarePartitioner.class.toString());
+
+	// States with more emissions than this many times the average work of a reducer are split. 0 turns
+	// off splitting.
+	public static final String HOT_STATE_FACTOR_KEY = "hot_state_factor";
+	public static final float DEFAULT_HOT_STATE_FACTOR = 0.0f;
+
+	// The state ids of EMRecordKey start at START_STATE_ID, so the arrays are indexed by id - START_STATE_ID.
+	private static final int ID_OFFSET = -EMRecordKey.START_STATE_ID;
+
+	// The reducer of each state (of the first part of each hot state).
+	private int[] statePartitions;
+	// The reducers of the emission parts of each hot state, or null for other states.
+	private int[][] emissionPartitions;
+
+	@Override
+	public void configure(JobConf job) {
+		try {
+			HmmModel model = ModelFiles.getCompiledModel(job, job.get(ExpectationMapper.BUCKET_URI_KEY),
+					job.get(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY), job.get(ExpectationMapper.START_STATE_KEY));
+			plan(model, job.getNumReduceTasks(), job.getFloat(HOT_STATE_FACTOR_KEY, DEFAULT_HOT_STATE_FACTOR));
+		} catch (Exception e) {
+			// The mappers load the same model, so they fail the job anyway.
+			LOGGER.log(Level.SEVERE, e.toString());
+		}
+	}
+
+	/**
+	 * Assigns the states of the given model to the given number of reducers.
+	 */
+	public void plan(HmmModel model, int numReducers, float hotStateFactor) {
+		int numStates = model.getNumStates();
+		long[] emissionSizes = getEmissionSizes(model);
+		int[] succOffsets = model.getSuccOffsets();
+
+		// One item of work per state, with the start state as a state without emissions.
+		long[] transitionSizes = new long[numStates + ID_OFFSET];
+		for (double logProb : model.getStartLogProbs()) {
+			if (logProb != Double.NEGATIVE_INFINITY) {
+				transitionSizes[EMRecordKey.START_STATE_ID + ID_OFFSET]++;
+			}
+		}
+
+		long totalSize = 0;
+		for (int state = 0; state < numStates; state++) {
+			transitionSizes[state + ID_OFFSET] = succOffsets[state+1] - succOffsets[state];
+			totalSize += transitionSizes[state + ID_OFFSET] + emissionSizes[state];
+		}
+		totalSize += transitionSizes[EMRecordKey.START_STATE_ID + ID_OFFSET];
+
+		double averageSize = (double) totalSize / numReducers;
+
+		List<WorkItem> items = new ArrayList<WorkItem>();
+		emissionPartitions = new int[numStates + ID_OFFSET][];
+		for (int i = 0; i < transitionSizes.length; i++) {
+			long emissionSize = i < ID_OFFSET ? 0 : emissionSizes[i - ID_OFFSET];
+
+			int numParts = 1;
+			if (hotStateFactor > 0 && emissionSize > hotStateFactor * averageSize) {
+				numParts = (int) Math.min(numReducers, Math.ceil(emissionSize / averageSize));
+			}
+
+			if (numParts > 1) {
+				emissionPartitions[i] = new int[numParts];
+				items.add(new WorkItem(i, 0, transitionSizes[i] + emissionSize / numParts));
+				for (int part = 1; part < numParts; part++) {
+					items.add(new WorkItem(i, part, emissionSize / numParts));
+				}
+			} else {
+				items.add(new WorkItem(i, 0, transitionSizes[i] + emissionSize));
+			}
+		}
+
+		// Longest processing time first. Ties are broken by state and part, so that the order, and so
+		// the assignment, is the same in every task.
+		Collections.sort(items, new Comparator<WorkItem>() {
+			@Override
+			public int compare(WorkItem a, WorkItem b) {
+				if (a.size != b.size) {
+					return a.size > b.size ? -1 : 1;
+				} else if (a.index != b.index) {
+					return a.index - b.index;
+				}
+				return a.part - b.part;
+			}
+		});
+
+		long[] reducerSizes = new long[numReducers];
+		statePartitions = new int[numStates + ID_OFFSET];
+		for (WorkItem item : items) {
+			int reducer = 0;
+			for (int r = 1; r < numReducers; r++) {
+				if (reducerSizes[r] < reducerSizes[reducer]) {
+					reducer = r;
+				}
+			}
+			reducerSizes[reducer] += item.size;
+
+			if (item.part == 0) {
+				statePartitions[item.index] = reducer;
+			}
+			if (emissionPartitions[item.index] != null) {
+				emissionPartitions[item.index][item.part] = reducer;
+			}
+		}
+
+		long maxReducerSize = 0;
+		for (long reducerSize : reducerSizes) {
+			maxReducerSize = Math.max(maxReducerSize, reducerSize);
+		}
+		LOGGER.log(Level.INFO, "Planned " + items.size() + " parts of " + transitionSizes.length + " states on "
+				+ numReducers + " reducers, largest/average work: " + maxReducerSize / averageSize);
+	}
+
+	@Override
+	public int getPartition(EMRecordKey key, DoubleWritable value, int numPartitions) {
+		if (statePartitions == null) { // The model could not be loaded.
+			return (key.getStateId() & Integer.MAX_VALUE) % numPartitions;
+		}
+
+		int index = key.getStateId() + ID_OFFSET;
+		int[] parts = emissionPartitions[index];
+		if (parts != null && key.getParameterType() == EMModelParameter.PARAMETER_TYPE_EMISSION) {
+			return parts[key.getSecondId() % parts.length];
+		}
+
+		return statePartitions[index];
+	}
+
+	/**
+	 * Returns true if the emission counts of the given state are split across reducers, so that no
+	 * reducer gets all of them.
+	 */
+	public boolean isEmissionSplit(int stateId) {
+		return emissionPartitions != null && emissionPartitions[stateId + ID_OFFSET] != null;
+	}
+
+	/**
+	 * Returns the number of non-zero emissions of each state.
+	 */
+	private static long[] getEmissionSizes(HmmModel model) {
+		long[] emissionSizes = new long[model.getNumStates()];
+		for (int token = 0; token < model.getNumTokens(); token++) {
+			for (int state : model.getAllowedStates(token)) {
+				emissionSizes[state]++;
+			}
+		}
+
+		return emissionSizes;
+	}
+
+	/**
+	 * A state, or a part of the emissions of a hot state, with its estimated size.
+	 */
+	private static class WorkItem {
+
+		private final int index;
+		private final int part;
+		private final long size;
+
+		public WorkItem(int index, int part, long size) {
+			this.index = index;
+			this.part = part;
+			this.size = size;
+		}
+	}
+}
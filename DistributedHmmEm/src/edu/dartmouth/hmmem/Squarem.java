@@ -0,0 +1,143 @@
+package edu.dartmouth.hmmem;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * SQUAREM acceleration of EM (Varadhan and Roland, "Simple and Globally Convergent Methods for
+ * Accelerating the Convergence of Any EM Algorithm", 2008), scheme S3.
+ *
+ * A cycle takes two plain EM steps, theta0 -> theta1 -> theta2, and extrapolates along them to
+ * 		theta' = theta0 + 2 * s * r + s^2 * v, with r = theta1 - theta0, v = theta2 - 2 * theta1 + theta0
+ * and the step length s = |r| / |v|, clamped to [1, maxStepLength]. A step length of 1 gives theta2,
+ * i.e. plain EM. The driver then runs an EM step on theta', which gives its likelihood, and falls back
+ * to theta2 if theta' is not at least as likely as theta1. Otherwise the output of that step starts
+ * the next cycle.
+ *
+ * The parameters are extrapolated in log space, so they stay positive, and every distribution is
+ * renormalized afterwards. A parameter that is 0 in theta2 stays 0, and one that is 0 in theta0 or
+ * theta1 only (e.g. one that was below double precision) keeps its value in theta2. As in the paper,
+ * the maximum step length grows after a successful step that was clamped to it, and shrinks back after
+ * a failure.
+ */
+public class Squarem {
+
+	// "acceleration=squarem" runs SQUAREM. By default, EMDriver runs plain EM.
+	public static final String ACCELERATION_KEY = "acceleration";
+	public static final String ACCELERATION_SQUAREM = "squarem";
+	// The initial maximum step length, at least 1.
+	public static final String MAX_STEP_LENGTH_KEY = "squarem_max_step";
+	public static final double DEFAULT_MAX_STEP_LENGTH = 4.0;
+
+	private static final double MAX_STEP_LENGTH_FACTOR = 4.0;
+
+	private final double initialMaxStepLength;
+	private double maxStepLength;
+	private double stepLength;
+
+	public Squarem(double maxStepLength) {
+		if (!(maxStepLength >= 1.0)) {
+			throw new IllegalArgumentException("Maximum step length must be at least 1, got " + maxStepLength + ".");
+		}
+
+		this.initialMaxStepLength = maxStepLength;
+		this.maxStepLength = maxStepLength;
+	}
+
+	/**
+	 * Extrapolates from the models of two EM steps, theta0 -> theta1 -> theta2, each given as its
+	 * transition and emission log probability maps, into the given empty maps. Returns the step length.
+	 */
+	public double extrapolate(Map<StringPair, Double> transLogProbMap0, Map<StringPair, Double> emisLogProbMap0,
+			Map<StringPair, Double> transLogProbMap1, Map<StringPair, Double> emisLogProbMap1,
+			Map<StringPair, Double> transLogProbMap2, Map<StringPair, Double> emisLogProbMap2,
+			Map<StringPair, Double> extrapolatedTransLogProbMap, Map<StringPair, Double> extrapolatedEmisLogProbMap) {
+		// The squared norms of r and v.
+		double[] squares = new double[2];
+		addSquares(transLogProbMap0, transLogProbMap1, transLogProbMap2, squares);
+		addSquares(emisLogProbMap0, emisLogProbMap1, emisLogProbMap2, squares);
+
+		stepLength = squares[1] > 0 ? Math.sqrt(squares[0] / squares[1]) : 1.0;
+		stepLength = Math.max(1.0, Math.min(maxStepLength, stepLength));
+
+		extrapolate(transLogProbMap0, transLogProbMap1, transLogProbMap2, stepLength, extrapolatedTransLogProbMap);
+		extrapolate(emisLogProbMap0, emisLogProbMap1, emisLogProbMap2, stepLength, extrapolatedEmisLogProbMap);
+
+		return stepLength;
+	}
+
+	/**
+	 * Adapts the maximum step length to whether the model of the last extrapolation was accepted.
+	 */
+	public void reportResult(boolean accepted) {
+		if (!accepted) {
+			maxStepLength = Math.max(initialMaxStepLength, maxStepLength / MAX_STEP_LENGTH_FACTOR);
+		} else if (stepLength == maxStepLength) {
+			maxStepLength *= MAX_STEP_LENGTH_FACTOR;
+		}
+	}
+
+	/**
+	 * Adds the squared norms of r and v over the parameters of the given maps that are non-zero in all
+	 * of them to squares[0] and squares[1].
+	 */
+	private static void addSquares(Map<StringPair, Double> logProbMap0, Map<StringPair, Double> logProbMap1,
+			Map<StringPair, Double> logProbMap2, double[] squares) {
+		for (Entry<StringPair, Double> entry : logProbMap2.entrySet()) {
+			Double logProb0 = logProbMap0.get(entry.getKey());
+			Double logProb1 = logProbMap1.get(entry.getKey());
+			if (!isUsable(logProb0) || !isUsable(logProb1) || !isUsable(entry.getValue())) {
+				continue;
+			}
+
+			double r = logProb1 - logProb0;
+			double v = entry.getValue() - 2 * logProb1 + logProb0;
+			squares[0] += r * r;
+			squares[1] += v * v;
+		}
+	}
+
+	/**
+	 * Extrapolates the parameters of the given maps with the given step length into extrapolatedLogProbMap,
+	 * and renormalizes them. An extrapolated log probability may be far above 0, so each distribution is
+	 * first shifted down by its largest one, which normalizing undoes anyway.
+	 */
+	private static void extrapolate(Map<StringPair, Double> logProbMap0, Map<StringPair, Double> logProbMap1,
+			Map<StringPair, Double> logProbMap2, double stepLength, Map<StringPair, Double> extrapolatedLogProbMap) {
+		for (Entry<StringPair, Double> entry : logProbMap2.entrySet()) {
+			Double logProb0 = logProbMap0.get(entry.getKey());
+			Double logProb1 = logProbMap1.get(entry.getKey());
+			Double logProb2 = entry.getValue();
+			if (!isUsable(logProb2)) {
+				continue;
+			}
+
+			if (!isUsable(logProb0) || !isUsable(logProb1)) {
+				extrapolatedLogProbMap.put(entry.getKey(), logProb2);
+			} else {
+				double r = logProb1 - logProb0;
+				double v = logProb2 - 2 * logProb1 + logProb0;
+				extrapolatedLogProbMap.put(entry.getKey(), logProb0 + 2 * stepLength * r + stepLength * stepLength * v);
+			}
+		}
+
+		Map<String, Double> maxLogProbs = new HashMap<String, Double>();
+		for (Entry<StringPair, Double> entry : extrapolatedLogProbMap.entrySet()) {
+			Double maxLogProb = maxLogProbs.get(entry.getKey().getX());
+			if (maxLogProb == null || entry.getValue() > maxLogProb) {
+				maxLogProbs.put(entry.getKey().getX(), entry.getValue());
+			}
+		}
+
+		for (Entry<StringPair, Double> entry : extrapolatedLogProbMap.entrySet()) {
+			entry.setValue(entry.getValue() - maxLogProbs.get(entry.getKey().getX()));
+		}
+
+		StaticUtil.normalizeLogProbMap(extrapolatedLogProbMap);
+	}
+
+	private static boolean isUsable(Double logProb) {
+		return logProb != null && logProb != Double.NEGATIVE_INFINITY;
+	}
+}
@@ -1,6 +1,7 @@
 package edu.dartmouth.hmmem;
 
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -8,13 +9,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import org.apache.hadoop.fs.FSDataInputStream;
-
 /**
  * Static utility methods for distributed HMM EM.
  */
 public class StaticUtil {
-	
+
+	public static final double LOG_2 = Math.log(2);
+
 	/**
 	 * Given two numbers log(x) and log(y), returns log(x+y). If both log(x) and log(y) are negative,
 	 * calculates the log of the sum in the following manner to reduce the risk of underflow:
@@ -53,14 +54,70 @@ public class StaticUtil {
 
 		double logScaledSum = Math.log(scaledX + scaledY) / Math.log(2);
 		double logSum = logScaledSum - logZ;
-		
-		if (!(Double.isNaN(logX) || Double.isNaN(logY))) {
-			System.out.println("logX = " + logX + ", logY = " + logY + ", logSum = " + logSum);
-		}
 
 		return logSum;
 	}
 
+	/**
+	 * Primitive version of calcLogSumOfLogs for the compiled model kernels, where log(0) is
+	 * represented by Double.NEGATIVE_INFINITY instead of null. Factors out the larger of the two
+	 * terms, so the single exponentiation can only underflow for terms that are negligible anyway.
+	 */
+	public static double calcLogSumOfLogs(double logX, double logY) {
+		if (logX == Double.NEGATIVE_INFINITY) {
+			return logY;
+		} else if (logY == Double.NEGATIVE_INFINITY) {
+			return logX;
+		}
+
+		double logMax = Math.max(logX, logY);
+		double logMin = Math.min(logX, logY);
+
+		return logMax + Math.log1p(Math.pow(2, logMin - logMax)) / LOG_2;
+	}
+
+	/**
+	 * Returns the log of the sum of the probabilities whose logs are logValues[offset] through
+	 * logValues[offset + length - 1], or log(0) if there are none. Rather than folding the values
+	 * pairwise, which costs a log and an exponentiation per value, finds the maximum in one pass,
+	 * sums the exponentiated differences from it in a second pass and takes a single log.
+	 *
+	 * The loop is unrolled into four independent accumulators, so consecutive additions do not wait
+	 * on each other.
+	 */
+	public static double calcLogSumOfLogs(double[] logValues, int offset, int length) {
+		int end = offset + length;
+
+		double logMax = Double.NEGATIVE_INFINITY;
+		for (int i = offset; i < end; i++) {
+			if (logValues[i] > logMax) {
+				logMax = logValues[i];
+			}
+		}
+
+		if (logMax == Double.NEGATIVE_INFINITY || logMax == Double.POSITIVE_INFINITY) {
+			return logMax;
+		}
+
+		double sum0 = 0.0;
+		double sum1 = 0.0;
+		double sum2 = 0.0;
+		double sum3 = 0.0;
+
+		int i = offset;
+		for (int unrolledEnd = offset + (length & ~3); i < unrolledEnd; i += 4) {
+			sum0 += Math.exp((logValues[i] - logMax) * LOG_2);
+			sum1 += Math.exp((logValues[i+1] - logMax) * LOG_2);
+			sum2 += Math.exp((logValues[i+2] - logMax) * LOG_2);
+			sum3 += Math.exp((logValues[i+3] - logMax) * LOG_2);
+		}
+		for (; i < end; i++) {
+			sum0 += Math.exp((logValues[i] - logMax) * LOG_2);
+		}
+
+		return logMax + Math.log((sum0 + sum1) + (sum2 + sum3)) / LOG_2;
+	}
+
 	/**
 	 * Given two numbers log(x) and log(y), returns log(x*y) = log(x) + log(y). This method is used
 	 * because it handles the case where x or y is 0, which is represented by log(x) or log(y) being null.
@@ -116,10 +173,10 @@ public class StaticUtil {
 	}
 	
 	/**
-	 * Reads the given model parameters file and fills in the transition and emission
+	 * Reads the given model parameters file in the text format and fills in the transition and emission
 	 * log probabilities maps.
 	 */
-	public static void readModelParametersFile(FSDataInputStream in, Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap) throws Exception {
+	public static void readModelParametersFile(InputStream in, Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap) throws Exception {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 		
 		String line;
@@ -50,7 +50,7 @@ public class StringPair implements Writable {
 			return false;
 		}
 		StringPair other = (StringPair) o;
-		return x.equals(other.x) && x.equals(other.x); 
+		return x.equals(other.x) && y.equals(other.y);
 	}
 	
     @Override
@@ -0,0 +1,96 @@
+package edu.dartmouth.hmmem;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An immutable hash index from the UTF-8 bytes of tokens to their ids, so that the ids of the tokens of
+ * a line can be looked up on slices of its bytes (see ByteTokenizer) without decoding them to Strings.
+ *
+ * The index is an open addressing table with linear probing, twice as large as the number of tokens,
+ * holding the token ids. The hash and the bytes of each token are kept to compare a slice with the
+ * tokens of its probe sequence.
+ */
+public class TokenIndex {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int EMPTY_SLOT = -1;
+
+	private final byte[][] tokenBytes;
+	private final int[] tokenHashes;
+	private final int[] slots;
+	private final int mask;
+
+	/**
+	 * Indexes the given tokens, whose ids are their indices.
+	 */
+	public TokenIndex(String[] tokens) {
+		tokenBytes = new byte[tokens.length][];
+		tokenHashes = new int[tokens.length];
+
+		int numSlots = Integer.highestOneBit(Math.max(2 * tokens.length, 8) - 1) << 1;
+		slots = new int[numSlots];
+		Arrays.fill(slots, EMPTY_SLOT);
+		mask = numSlots - 1;
+
+		for (int id = 0; id < tokens.length; id++) {
+			byte[] bytes = tokens[id].getBytes(UTF_8);
+			int hash = hash(bytes, 0, bytes.length);
+			tokenBytes[id] = bytes;
+			tokenHashes[id] = hash;
+
+			int slot = hash & mask;
+			while (slots[slot] != EMPTY_SLOT) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = id;
+		}
+	}
+
+	/**
+	 * Returns the id of the token whose UTF-8 bytes are bytes[start] through bytes[end - 1], or
+	 * HmmModel.UNKNOWN_ID if it is not indexed.
+	 */
+	public int getTokenId(byte[] bytes, int start, int end) {
+		int hash = hash(bytes, start, end);
+
+		for (int slot = hash & mask; slots[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+			int id = slots[slot];
+			if (tokenHashes[id] == hash && equals(tokenBytes[id], bytes, start, end)) {
+				return id;
+			}
+		}
+
+		return HmmModel.UNKNOWN_ID;
+	}
+
+	private static boolean equals(byte[] token, byte[] bytes, int start, int end) {
+		if (token.length != end - start) {
+			return false;
+		}
+
+		for (int i = 0; i < token.length; i++) {
+			if (token[i] != bytes[start + i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * FNV-1a hash of the bytes, with a final mix so that the low bits used for the slot depend on all
+	 * the bytes.
+	 */
+	private static int hash(byte[] bytes, int start, int end) {
+		int hash = 0x811c9dc5;
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+		}
+
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+}
@@ -1,26 +1,16 @@
 package edu.dartmouth.hmmem;
 
 import java.io.IOException;
-import java.net.URI;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -31,64 +21,54 @@ import org.apache.hadoop.mapred.Reporter;
 public class ViterbiMapReduce {
 
 	public static class ViterbiMapper extends MapReduceBase implements
-			Mapper<LongWritable, Text, NullWritable, TaggedObservationSequence> {
+			Mapper<LongWritable, Writable, NullWritable, TaggedObservationSequence> {
 		
 		private static final Logger LOGGER = Logger.getLogger(ExpectationMapper.class.toString());
 	
 		public static final String BUCKET_URI_KEY = "bucket_uri";
 		public static final String MODEL_PARAMETERS_DIR_PATH_KEY = "model_parameters_file_path";
 		public static final String START_STATE_KEY = "start_state";
+
+		// Written in place of the tokens of an encoded observation sequence that are not in the vocabulary.
+		public static final String UNKNOWN_TOKEN = "<unk>";
 	
-		private final Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
-		private final Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
-		
-		private Set<String> stateSet;
-		private String startState;
+		private HmmModel model;
+		private ByteTokenizer tokenizer;
 	
 		private boolean failure = false;
 		private String failureString;
 	
 		@Override
-		public void map(LongWritable key, Text value,
+		public void map(LongWritable key, Writable value,
 				OutputCollector<NullWritable, TaggedObservationSequence> output, Reporter reporter)
 				throws IOException {
 			if (failure) {
 				throw new IOException(failureString);
 			}
 			
-			System.out.println("Transitions:");
-			for (Entry<StringPair, Double> entry : transLogProbMap.entrySet()) {
-				System.out.println(entry.getKey() + ": " + entry.getValue());
-			}
-			
-			System.out.println("Emissions:");
-			for (Entry<StringPair, Double> entry : emisLogProbMap.entrySet()) {
-				System.out.println(entry.getKey() + ": " + entry.getValue());
+			// Calculate the Viterbi tagging, of either the observation sequence encoded once by CorpusEncoder
+			// or the input line.
+			TaggedObservationSequence viterbiTagging;
+			if (value instanceof EncodedObservationSequence) {
+				EncodedObservationSequence encoded = (EncodedObservationSequence) value;
+				viterbiTagging = calculateViterbiTagging(encoded.getTokenIds(), encoded.getLength(), model);
+			} else {
+				tokenizer.tokenize((Text) value);
+				viterbiTagging = calculateViterbiTagging(tokenizer, model);
 			}
 
-			System.out.println("State set:");
-			for (String state : stateSet) {
-				System.out.println(state);
+			if (viterbiTagging == null) {
+				return; // Blank line.
 			}
 			
-			System.out.println("Start state:");
-			System.out.println(startState);
-
-			// Create the observation sequence list from the input line.
-			String observationSequenceString = value.toString();
-			List<String> observationSequence = Arrays.asList(observationSequenceString.trim().split("\\s+"));
-			
-			// Calculate the Viterbi tagging.
-			TaggedObservationSequence viterbiTagging = calculateViterbiTagging(observationSequence, transLogProbMap,
-					emisLogProbMap, stateSet, startState);
-			
 			// Output the tagged sequence.
 			output.collect(NullWritable.get(), viterbiTagging);
 		}
 		
 		/**
 		 * Runs before each map. Obtains the path to the model parameters file from the job conf. Then
-		 * parses the file and fills in the transition and emission log probabilities maps.
+		 * parses the file and compiles the transition and emission log probabilities into the model, unless
+		 * a previous task in the same JVM already did.
 		 */
 		@Override
 		public void configure(JobConf job) {
@@ -97,24 +77,11 @@ public class ViterbiMapReduce {
 	
 				System.err.println("~~~~~~~~~~~~~Configure~~~~~~~~~~~~~");
 	
-				URI bucketURI = new URI(job.get(BUCKET_URI_KEY));
-	
-				FileSystem fs;
-				fs = NativeS3FileSystem.get(bucketURI, new Configuration());
-	
-				Path modelParametersDirPath = new Path(job.get(MODEL_PARAMETERS_DIR_PATH_KEY));
-				FileStatus[] modelParameterFileStatuses;
-				modelParameterFileStatuses = fs.listStatus(modelParametersDirPath);
-	
-				for (FileStatus modelParameterFileStatus : modelParameterFileStatuses) {
-					LOGGER.log(Level.INFO, "Parsing model parameters file: " + modelParameterFileStatus.getPath());
-	
-					if (!modelParameterFileStatus.getPath().getName().equals(MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME)) {
-						FSDataInputStream modelParametersIn = fs.open(modelParameterFileStatus.getPath());
-						StaticUtil.readModelParametersFile(modelParametersIn, transLogProbMap, emisLogProbMap);
-					}
-				}
-	
+				// The model is compiled once, so that map() does no hashing per trellis cell.
+				model = ModelFiles.getCompiledModel(job, job.get(BUCKET_URI_KEY), job.get(MODEL_PARAMETERS_DIR_PATH_KEY),
+						job.get(START_STATE_KEY));
+				tokenizer = new ByteTokenizer(model.getTokenIndex());
+			
 				LOGGER.log(Level.INFO, "End of configure()");
 			} catch (Exception e) {
 				failure = true;
@@ -122,119 +89,146 @@ public class ViterbiMapReduce {
 	
 				LOGGER.log(Level.SEVERE, failureString);
 			}
-			
-			// Set stateSet and startState.
-			startState = job.get(START_STATE_KEY);
-			stateSet = StaticUtil.makeStateSetFromTransDict(transLogProbMap);
 		}
 		
-		private static TaggedObservationSequence calculateViterbiTagging(List<String> observationSequence, Map<StringPair, Double> transLogProbDict,
-				Map<StringPair, Double> emisLogProbDict, Set<String> stateSet, String startState) {
-			int numObs = observationSequence.size();
+		/**
+		 * Calculates the most likely tagging of the observation sequence under the model. Returns null for
+		 * an empty sequence.
+		 */
+		public static TaggedObservationSequence calculateViterbiTagging(List<String> observationSequence, HmmModel model) {
+			int[] path = calculateViterbiPath(model.encode(observationSequence), observationSequence.size(), model);
+			if (path == null) {
+				return null;
+			}
+
+			TaggedObservationSequence optimalTagging = new TaggedObservationSequence();
+			for (int i = 0; i < path.length; i++) {
+				optimalTagging.appendObsTag(new StringPair(observationSequence.get(i), model.getState(path[i])));
+			}
+
+			return optimalTagging;
+		}
+
+		/**
+		 * Calculates the most likely tagging of the last line tokenized by the given tokenizer under the
+		 * model. Returns null for an empty line.
+		 */
+		public static TaggedObservationSequence calculateViterbiTagging(ByteTokenizer tokenizer, HmmModel model) {
+			int[] tokenIds = tokenizer.getTokenIds();
+			int[] path = calculateViterbiPath(tokenIds, tokenizer.getNumTokens(), model);
+			if (path == null) {
+				return null;
+			}
+
+			// Only the tokens that are not in the model are decoded to new Strings.
+			TaggedObservationSequence optimalTagging = new TaggedObservationSequence();
+			for (int i = 0; i < path.length; i++) {
+				String obs = tokenIds[i] == HmmModel.UNKNOWN_ID ? tokenizer.getToken(i) : model.getToken(tokenIds[i]);
+				optimalTagging.appendObsTag(new StringPair(obs, model.getState(path[i])));
+			}
+
+			return optimalTagging;
+		}
+
+		/**
+		 * Calculates the most likely tagging of the first numObs token ids of encodedObservationSequence
+		 * under the model, with the tokens of the model, and UNKNOWN_TOKEN for the unknown ones. Returns
+		 * null for an empty sequence.
+		 */
+		public static TaggedObservationSequence calculateViterbiTagging(int[] encodedObservationSequence, int numObs, HmmModel model) {
+			int[] path = calculateViterbiPath(encodedObservationSequence, numObs, model);
+			if (path == null) {
+				return null;
+			}
+
+			TaggedObservationSequence optimalTagging = new TaggedObservationSequence();
+			for (int i = 0; i < path.length; i++) {
+				int token = encodedObservationSequence[i];
+				String obs = token == HmmModel.UNKNOWN_ID ? UNKNOWN_TOKEN : model.getToken(token);
+				optimalTagging.appendObsTag(new StringPair(obs, model.getState(path[i])));
+			}
+
+			return optimalTagging;
+		}
+
+		/**
+		 * Returns the ids of the states of the most likely tagging of the first numObs token ids of
+		 * encodedObservationSequence under the model, or null for an empty sequence.
+		 */
+		public static int[] calculateViterbiPath(int[] encodedObservationSequence, int numObs, HmmModel model) {
 			if (numObs == 0) {
 				return null;
 				// TODO: What happens next?
 			}
 			
+			int numStates = model.getNumStates();
+			int[] predOffsets = model.getPredOffsets();
+			int[] predStates = model.getPredStates();
+			double[] predLogProbs = model.getPredLogProbs();
+			
 			// Keeps track of probabilities.
-			Map<String, Double[]> viterbiLogProbMatrix = new HashMap<String, Double[]>();
+			double[][] viterbiLogProbMatrix = new double[numObs][numStates];
 			// Keeps track of previous tag that maximized probability.
-			Map<String, String[]> viterbiPrevStateMatrix = new HashMap<String, String[]>();
-			
-			for (String state : stateSet) {
-				viterbiLogProbMatrix.put(state, new Double[numObs]);
-				viterbiPrevStateMatrix.put(state, new String[numObs]);
-			}
+			int[][] viterbiPrevStateMatrix = new int[numObs][numStates];
 			
 			// Begin by filling out the matrix for the first observation. This requires a
 			// special case because we start out at startState with a probability of 1.0.
-			for (String state : stateSet) {
+			double[] startLogProbs = model.getStartLogProbs();
+			double[] firstEmisLogProbs = model.getEmissionColumn(encodedObservationSequence[0]);
+			Arrays.fill(viterbiLogProbMatrix[0], Double.NEGATIVE_INFINITY);
+			for (int state : model.getAllowedStates(encodedObservationSequence[0])) {
 				// P(state|#) * P(firstObservation|state)
-				StringPair transStringPair = new StringPair(startState, state);
-				Double logProbStateGivenStart = transLogProbDict.get(transStringPair);
-				
-				StringPair emisStringPair = new StringPair(state, observationSequence.get(0));
-				Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-				
-				Double logProb = StaticUtil.calcLogProductOfLogs(logProbStateGivenStart, logProbObsGivenState);
-				viterbiLogProbMatrix.get(state)[0] = logProb;
+				viterbiLogProbMatrix[0][state] = startLogProbs[state] + firstEmisLogProbs[state];
 			}
 			
-			// Now complete the rest of the matrix.
+			// Now complete the rest of the matrix. Only the states that can emit an observation can be
+			// on the best path, so the cells of all other states stay at log(0).
 			for (int i = 1; i < numObs; i++) {
-				String obs = observationSequence.get(i);
+				double[] emisLogProbs = model.getEmissionColumn(encodedObservationSequence[i]);
+				double[] prevColumn = viterbiLogProbMatrix[i-1];
+				Arrays.fill(viterbiLogProbMatrix[i], Double.NEGATIVE_INFINITY);
 				
-				for (String state : stateSet) {
-					// The emission probability is the same given one state.
-					StringPair emisStringPair = new StringPair(state, obs);
-					Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
+				for (int state : model.getAllowedStates(encodedObservationSequence[i])) {
+					double maxLogProb = Double.NEGATIVE_INFINITY;
+					int maxPrevState = 0;
 					
-					for (String prevState : stateSet) {
-						// P(state|prevState) * P(obs|state) * Forward(i-1, prevState)
-						StringPair transStringPair = new StringPair(prevState, state);
-						Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
-						
-						Double prevObsPrevStateViterbiLogProb = viterbiLogProbMatrix.get(prevState)[i-1];
-						
-						Double logProb = StaticUtil.calcLogProductOfLogs(StaticUtil.calcLogProductOfLogs(logProbStateGivenPrevState, logProbObsGivenState), prevObsPrevStateViterbiLogProb);
-						Double maxLogProb = viterbiLogProbMatrix.get(state)[i];
-						if (maxLogProb == null || (logProb != null && logProb > maxLogProb)) {
-							viterbiLogProbMatrix.get(state)[i] = logProb;
-							viterbiPrevStateMatrix.get(state)[i] = prevState;
+					// Only the transitions into state that exist can be on the best path.
+					for (int edge = predOffsets[state]; edge < predOffsets[state+1]; edge++) {
+						// P(state|prevState) * Viterbi(i-1, prevState)
+						double logProb = predLogProbs[edge] + prevColumn[predStates[edge]];
+						if (logProb > maxLogProb) {
+							maxLogProb = logProb;
+							maxPrevState = predStates[edge];
 						}
 					}
+					
+					// The emission probability is the same given one state.
+					viterbiLogProbMatrix[i][state] = maxLogProb + emisLogProbs[state];
+					viterbiPrevStateMatrix[i][state] = maxPrevState;
 				}
 			}
 			
 			// Find the tagging for the last emission in the sequence.
-			Double lastMaxLogProb = null;
-			String lastMaxState = null;
-			for (String state : stateSet) {
-				Double lastLogProb = viterbiLogProbMatrix.get(state)[numObs - 1];
-				if (lastMaxLogProb == null || (lastLogProb != null && lastLogProb > lastMaxLogProb)) {
-					lastMaxLogProb = lastLogProb;
+			double[] lastColumn = viterbiLogProbMatrix[numObs - 1];
+			int lastMaxState = 0;
+			for (int state = 1; state < numStates; state++) {
+				if (lastColumn[state] > lastColumn[lastMaxState]) {
 					lastMaxState = state;
 				}
 			}
 			
-			// Create the optimal tagging from the matrices.
-			TaggedObservationSequence optimalTagging = new TaggedObservationSequence();
+			// Create the optimal path from the matrices.
+			int[] optimalPath = new int[numObs];
 			
-			String state = lastMaxState;
+			int state = lastMaxState;
 			for (int i = numObs - 1; i >= 0; i--) {
-				String obs = observationSequence.get(i);
-				optimalTagging.prependObsTag(new StringPair(obs, state));
+				optimalPath[i] = state;
 				
 				// Update state for the preceding observation.
-				state = viterbiPrevStateMatrix.get(state)[i];
+				state = viterbiPrevStateMatrix[i][state];
 			}
 			
-			// Print matrices
-			System.out.println("Viterbi Log Prob Matrix:");
-			for (Entry<String, Double[]> entry : viterbiLogProbMatrix.entrySet()) {
-				System.out.print(entry.getKey() + ":");
-				for (Double logProb : entry.getValue()) {
-					System.out.print(" " + logProb);
-				}
-				
-				System.out.println();
-			}
-			
-			System.out.println("Viterbi Prev State Matrix:");
-			// Print matrices
-			for (Entry<String, String[]> entry : viterbiPrevStateMatrix.entrySet()) {
-				System.out.print(entry.getKey() + ":");
-				for (String prevState : entry.getValue()) {
-					System.out.print(" " + prevState);
-				}
-				
-				System.out.println();
-			}
-			
-			System.out.println("Optimal tagging:");
-			System.out.println(optimalTagging);
-			
-			return optimalTagging;
+			return optimalPath;
 		}
 	}
 	
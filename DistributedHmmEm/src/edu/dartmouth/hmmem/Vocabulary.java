@@ -0,0 +1,107 @@
+package edu.dartmouth.hmmem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A fixed set of tokens with dense int ids, assigned in sorted order.
+ *
+ * The vocabulary of an EM run is the set of tokens of the emissions file. It is written once, next to
+ * the output of the run, so that the corpus can be encoded to token ids once (see CorpusEncoder), and
+ * every model of the run is compiled with the same token ids, even after EM drops the emissions of
+ * some tokens. The file has one token per line, in id order.
+ */
+public class Vocabulary {
+
+	private final String[] tokens;
+	private final Map<String, Integer> tokenIds;
+	private TokenIndex tokenIndex;
+
+	private Vocabulary(String[] tokens) {
+		this.tokens = tokens;
+
+		tokenIds = new HashMap<String, Integer>();
+		for (int i = 0; i < tokens.length; i++) {
+			tokenIds.put(tokens[i], i);
+		}
+	}
+
+	/**
+	 * Returns the vocabulary of the given tokens, which may contain duplicates.
+	 */
+	public static Vocabulary fromTokens(Collection<String> tokens) {
+		TreeSet<String> tokenSet = new TreeSet<String>(tokens);
+		return new Vocabulary(tokenSet.toArray(new String[tokenSet.size()]));
+	}
+
+	/**
+	 * Reads a vocabulary file.
+	 */
+	public static Vocabulary read(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		List<String> tokens = new ArrayList<String>();
+
+		String line;
+		while (null != (line = reader.readLine())) {
+			tokens.add(line);
+		}
+
+		return new Vocabulary(tokens.toArray(new String[tokens.size()]));
+	}
+
+	/**
+	 * Writes the vocabulary file to the given output stream, and closes it.
+	 */
+	public void write(OutputStream out) throws IOException {
+		PrintStream printStream = new PrintStream(out, false, "UTF-8");
+		for (String token : tokens) {
+			printStream.print(token);
+			printStream.print('\n');
+		}
+		printStream.close();
+	}
+
+	public int size() {
+		return tokens.length;
+	}
+
+	public String getToken(int tokenId) {
+		return tokens[tokenId];
+	}
+
+	/**
+	 * Returns the id of the given token, or HmmModel.UNKNOWN_ID if it is not in the vocabulary.
+	 */
+	public int getTokenId(String token) {
+		Integer id = tokenIds.get(token);
+		return id == null ? HmmModel.UNKNOWN_ID : id;
+	}
+
+	/**
+	 * Returns the index of the UTF-8 bytes of the tokens to their ids, building it on first use.
+	 */
+	public synchronized TokenIndex getTokenIndex() {
+		if (tokenIndex == null) {
+			tokenIndex = new TokenIndex(tokens);
+		}
+
+		return tokenIndex;
+	}
+
+	/**
+	 * Returns the tokens, in id order. The array is shared and must not be modified.
+	 */
+	String[] getTokens() {
+		return tokens;
+	}
+}
@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.dartmouth.hmmem.EMDriver;
+import edu.dartmouth.hmmem.ExpectedCounts;
+import edu.dartmouth.hmmem.ForwardBackward;
+import edu.dartmouth.hmmem.HmmModel;
+import edu.dartmouth.hmmem.ModelFiles;
+import edu.dartmouth.hmmem.StaticUtil;
+import edu.dartmouth.hmmem.StringPair;
+
+/**
+ * Runs one iteration of EMDriver as a MapReduce job with Hadoop's local job runner on a toy corpus,
+ * and checks the model it outputs against an E-step and M-step of the same seed model in memory.
+ * Every state of the toy model has several transitions and emissions, so each row of the output is
+ * assembled from the counts of several parameters.
+ *
+ * Arguments:
+ * 0: A local working directory that does not yet exist.
+ */
+public class EMJobCheck {
+
+	// The largest absolute difference in log base 2 allowed between the two models.
+	public static final double LOG_PROB_TOLERANCE = 1e-9;
+
+	// The from state of the first transition, as EMDriver takes it.
+	private static final String START_STATE = "#";
+
+	private static final String[] CORPUS = {
+		"the dog runs",
+		"a cat sees the dog",
+		"the cat runs",
+		"a dog sees a cat",
+		"the dog sees the cat runs",
+	};
+
+	private static final String[] TRANSITIONS = {"# D", "# N", "D N", "D D", "N V", "N N", "V D", "V N"};
+
+	private static final String[] EMISSIONS = {"D the", "D a", "N dog", "N cat", "N runs", "V runs", "V sees", "V dog"};
+
+	public static void main(String args[]) throws Exception {
+		String workDirPathStr = new File(args[0]).getAbsolutePath();
+		if (!new File(workDirPathStr + "/input").mkdirs()) {
+			throw new Exception("Could not create " + workDirPathStr + "/input.");
+		}
+
+		writeLines(workDirPathStr + "/input/corpus.txt", CORPUS);
+		writeLines(workDirPathStr + "/transitions.txt", TRANSITIONS);
+		writeLines(workDirPathStr + "/emissions.txt", EMISSIONS);
+
+		String outputDirPathStr = workDirPathStr + "/output";
+		EMDriver.main(new String[] {"em-job-check", "file:///", workDirPathStr + "/input", outputDirPathStr,
+				workDirPathStr + "/transitions.txt", workDirPathStr + "/emissions.txt", "0.0", "1"});
+
+		// The expected model: one iteration of EM on the seed in memory.
+		FileSystem fs = FileSystem.getLocal(new Configuration());
+		Map<StringPair, Double> seedTransLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> seedEmisLogProbMap = new HashMap<StringPair, Double>();
+		ModelFiles.readModelParametersDir(fs, new Path(outputDirPathStr + "/0/"), seedTransLogProbMap, seedEmisLogProbMap);
+
+		HmmModel model = HmmModel.compile(seedTransLogProbMap, seedEmisLogProbMap, START_STATE);
+		ForwardBackward forwardBackward = new ForwardBackward(model);
+		ExpectedCounts counts = new ExpectedCounts(model);
+		for (String line : CORPUS) {
+			List<String> obsSequence = Arrays.asList(line.split(" "));
+			int[] encodedObsSequence = model.encode(obsSequence);
+			double logAlpha = forwardBackward.calculateForward(encodedObsSequence, encodedObsSequence.length);
+			counts.addLogAlpha(logAlpha);
+			forwardBackward.accumulateCounts(logAlpha, counts);
+		}
+
+		Map<StringPair, Double> expectedTransLogProbMap = counts.makeTransitionLogCountMap();
+		Map<StringPair, Double> expectedEmisLogProbMap = counts.makeEmissionLogCountMap();
+		StaticUtil.normalizeLogProbMap(expectedTransLogProbMap);
+		StaticUtil.normalizeLogProbMap(expectedEmisLogProbMap);
+
+		// The model output by the job.
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		ModelFiles.readModelParametersDir(fs, new Path(outputDirPathStr + "/1/"), transLogProbMap, emisLogProbMap);
+
+		checkLogProbMaps("transitions", expectedTransLogProbMap, transLogProbMap);
+		checkLogProbMaps("emissions", expectedEmisLogProbMap, emisLogProbMap);
+		checkRowsNormalized("transitions", transLogProbMap);
+		checkRowsNormalized("emissions", emisLogProbMap);
+
+		System.out.println("The EM job agrees with the in-memory EM on " + transLogProbMap.size() + " transitions and "
+				+ emisLogProbMap.size() + " emissions.");
+	}
+
+	/**
+	 * Throws if the given maps do not have the same parameters with the same log probabilities.
+	 */
+	private static void checkLogProbMaps(String what, Map<StringPair, Double> expectedLogProbMap,
+			Map<StringPair, Double> logProbMap) throws Exception {
+		if (!expectedLogProbMap.keySet().equals(logProbMap.keySet())) {
+			throw new Exception("The job output the " + what + " " + logProbMap.keySet() + ", expected "
+					+ expectedLogProbMap.keySet() + ".");
+		}
+
+		for (Entry<StringPair, Double> entry : expectedLogProbMap.entrySet()) {
+			double logProb = logProbMap.get(entry.getKey());
+			if (!(Math.abs(logProb - entry.getValue()) <= LOG_PROB_TOLERANCE)) {
+				throw new Exception("The job output log prob " + logProb + " for " + entry.getKey() + ", expected "
+						+ entry.getValue() + ".");
+			}
+		}
+	}
+
+	/**
+	 * Throws if a row of the given map does not sum to 1.0.
+	 */
+	private static void checkRowsNormalized(String what, Map<StringPair, Double> logProbMap) throws Exception {
+		Map<String, Double> logProbSums = new HashMap<String, Double>();
+		for (Entry<StringPair, Double> entry : logProbMap.entrySet()) {
+			logProbSums.put(entry.getKey().getX(), StaticUtil.calcLogSumOfLogs(logProbSums.get(entry.getKey().getX()),
+					entry.getValue()));
+		}
+
+		for (Entry<String, Double> entry : logProbSums.entrySet()) {
+			if (!(Math.abs(entry.getValue()) <= LOG_PROB_TOLERANCE)) {
+				throw new Exception("The " + what + " of " + entry.getKey() + " sum to 2^" + entry.getValue() + ".");
+			}
+		}
+	}
+
+	private static void writeLines(String pathStr, String[] lines) throws Exception {
+		PrintWriter writer = new PrintWriter(pathStr, "UTF-8");
+		for (String line : lines) {
+			writer.println(line);
+		}
+		writer.close();
+	}
+}
@@ -1,7 +1,6 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.PrintWriter;
-import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -12,14 +11,34 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 
+import org.apache.hadoop.conf.Configuration;
+
+import edu.dartmouth.hmmem.ExpectationMapper;
+import edu.dartmouth.hmmem.ExpectedCounts;
+import edu.dartmouth.hmmem.ForwardBackward;
+import edu.dartmouth.hmmem.HmmModel;
+import edu.dartmouth.hmmem.OnlineEM;
 import edu.dartmouth.hmmem.StaticUtil;
 import edu.dartmouth.hmmem.StringPair;
 import edu.dartmouth.hmmem.TaggedObservationSequence;
+import edu.dartmouth.hmmem.ViterbiMapReduce;
 
 public class LocalEMDev {
 
 	public static final int MAX_ITERATIONS = 10;
 
+	// The seed of the random log values of the log-sum-exp cross-check, so that a failure can be rerun.
+	public static final long LOG_SUM_CHECK_SEED = 20140301L;
+	// The largest absolute difference in log base 2 allowed between two log sums of the same values.
+	public static final double LOG_SUM_TOLERANCE = 1e-9;
+	// The largest difference allowed between the expected counts of two E-step modes, relative to the
+	// larger count, or absolute for counts below 1.
+	public static final double COUNT_TOLERANCE = 1e-9;
+	// Short enough for the sequences of the corpus to be run with checkpointing.
+	public static final int CHECKPOINT_CHECK_MIN_LENGTH = 2;
+	// The number of online EM iterations over which the step sizes must keep decreasing.
+	public static final int ONLINE_CHECK_ITERATIONS = 4;
+
 	public static void main(String args[]) throws Exception {
 		String emisFile = args[0];
 		String transFile = args[1];
@@ -37,6 +56,11 @@ public class LocalEMDev {
 		
 		printParameterMap(testLogProbMap);
 		
+		///////////////////////////
+		// Testing log-sum-exp   //
+		
+		System.out.println("Max log-sum-exp error: " + crossCheckLogSumOfLogs(new Random(LOG_SUM_CHECK_SEED), 1000));
+		
 		///////////////////////////
 		
 		BufferedReader transFileReader = new BufferedReader(new FileReader(emisFile));
@@ -75,13 +99,6 @@ public class LocalEMDev {
 
 		//		StaticUtil.readModelParametersFile(new RandomAccessFile("/Users/jakeleichtling/Desktop/test/params.txt", "r"), transLogProbDict, emisLogProbDict);
 
-		Set<String> stateSet = new HashSet<String>();
-		for (StringPair transStringPair : transLogProbDict.keySet()) {
-			stateSet.add(transStringPair.getY());
-		}
-
-		// System.out.println(stateSet);
-
 		String startState = "#";
 
 		BufferedReader corpusReader = new BufferedReader(new FileReader(corpusFile));
@@ -100,58 +117,55 @@ public class LocalEMDev {
 			obsSequences.add(obsSequence);
 		}
 
-		for (int i = 0; i < MAX_ITERATIONS; i++) {
-			Map<StringPair, Double> nextTransLogDict = new HashMap<StringPair, Double>();
-			Map<StringPair, Double> nextEmisLogDict = new HashMap<StringPair, Double>();	
-			Double totalLogAlpha = 0.0;
-			
-			for (List<String> obsSequence : obsSequences) {
+		///////////////////////////
+		// Testing E-step modes  //
 
-				// System.out.println("Viterbi tagging:");
-				// System.out.println(calculateViterbiTagging(firstLineObsSequence, transLogProbDict, emisLogProbDict, stateSet, startState));		
+		HmmModel initialModel = HmmModel.compile(transLogProbDict, emisLogProbDict, startState);
+		crossCheckForwardBackward(initialModel, obsSequences, ForwardBackward.MODE_SCALED, ForwardBackward.DEFAULT_CHECKPOINT_MIN_LENGTH);
+		crossCheckForwardBackward(initialModel, obsSequences, ForwardBackward.MODE_LOG, CHECKPOINT_CHECK_MIN_LENGTH);
+		crossCheckForwardBackward(initialModel, obsSequences, ForwardBackward.MODE_SCALED, CHECKPOINT_CHECK_MIN_LENGTH);
+		System.out.println("E-step modes agree with the log mode on the full trellis.");
 
-				Map<String, Double[]> forwardMatrix = calculateForwardMatrix(obsSequence, transLogProbDict, emisLogProbDict, stateSet, startState);
-				// System.out.println("Forward matrix:");
-//				printForwardOrBackwardMatrix(forwardMatrix, obsSequence);
+		///////////////////////////
+		// Testing online steps  //
 
-				Map<String, Double[]> backwardMatrix = calculateBackwardMatrix(obsSequence, transLogProbDict, emisLogProbDict, stateSet, startState);
-				// System.out.println("\nBackward matrix:");
-//				printForwardOrBackwardMatrix(backwardMatrix, obsSequence);
+		checkOnlineStepSizes(initialModel, obsSequences, ONLINE_CHECK_ITERATIONS);
+		System.out.println("Online step sizes decrease across " + ONLINE_CHECK_ITERATIONS + " iterations.");
 
-//				System.out.println("\nLog alpha:");
-//				System.out.println(getLogAlpha(firstLineForwardMatrix));
-				Double logAlpha = getLogAlpha(forwardMatrix);
+		///////////////////////////
+
+		for (int i = 0; i < MAX_ITERATIONS; i++) {
+			HmmModel model = HmmModel.compile(transLogProbDict, emisLogProbDict, startState);
+			ExpectedCounts counts = new ExpectedCounts(model);
+			ForwardBackward forwardBackward = new ForwardBackward(model);
+			
+			for (List<String> obsSequence : obsSequences) {
+				int[] encodedObsSequence = model.encode(obsSequence);
+
+				double logAlpha = forwardBackward.calculateForward(encodedObsSequence, encodedObsSequence.length);
 				System.out.println("Line:");
 				System.out.println(obsSequence.toString());
 				System.out.println("Log alpha:");
 				System.out.println(logAlpha);
-				if (logAlpha == null) {
-					System.err.println("NULL LOG ALPHA!");
+				if (logAlpha == Double.NEGATIVE_INFINITY) {
+					System.err.println("ZERO ALPHA!");
+					continue;
 				}
-				totalLogAlpha = calcLogProductOfLogs(totalLogAlpha, logAlpha);
-				
-				Map<StringPair, Double> logTransCounts = calculateLogTransitionCounts(forwardMatrix, backwardMatrix, logAlpha, transLogProbDict, emisLogProbDict, obsSequence, stateSet, startState);
-//				normalizeLogProbMap(logTransCounts);
-				// System.out.println("\nTransition counts:");
-//				printParameterMap(logTransCounts);
-				addLogPairDicts(nextTransLogDict, logTransCounts);
-
-				Map<StringPair, Double> logEmisCounts = calculateLogEmissionCounts(forwardMatrix, backwardMatrix, logAlpha, obsSequence, stateSet);
-//				normalizeLogProbMap(logEmisCounts);
-				// System.out.println("\nEmission counts:");
-//				printParameterMap(logEmisCounts);
-				addLogPairDicts(nextEmisLogDict, logEmisCounts);
+				counts.addLogAlpha(logAlpha);
+
+				forwardBackward.accumulateCounts(logAlpha, counts);
 			}
 			
+			Map<StringPair, Double> nextTransLogDict = counts.makeTransitionLogCountMap();
+			Map<StringPair, Double> nextEmisLogDict = counts.makeEmissionLogCountMap();
+			
 			normalizeLogProbMap(nextTransLogDict);
 			normalizeLogProbMap(nextEmisLogDict);
 			
 			transLogProbDict = nextTransLogDict;
 			emisLogProbDict = nextEmisLogDict;
 			
-			System.out.println("Total log alpha at iteration " + i + ": " + totalLogAlpha);
-			
-
+			System.out.println("Total log alpha at iteration " + i + ": " + counts.getTotalLogAlpha());
 		}
 		
 //		System.out.println("Trans log prob dict: ");
@@ -171,131 +185,16 @@ public class LocalEMDev {
 		}
 		
 		PrintWriter writer = new PrintWriter(outputFile, "UTF-8");
+		HmmModel finalModel = HmmModel.compile(transLogProbDict, emisLogProbDict, startState);
 		
 		for (List<String> obsSequence : obsSequences) {
-			TaggedObservationSequence tagging = calculateViterbiTagging(obsSequence, transLogProbDict, emisLogProbDict, 
-				stateSet, "#");
+			TaggedObservationSequence tagging = ViterbiMapReduce.ViterbiMapper.calculateViterbiTagging(obsSequence, finalModel);
 			writer.println(tagging.toString());
 		}
 		
 		writer.close();
 	}
 
-	/**
-	 * Calculates the forward matrix given an observation sequence and model parameters.
-	 * Returns a dictionary mapping each state X to an array of log probabilities, where each
-	 * log probability at index i corresponds to the sum over all possible previous taggings
-	 * of the probability of observation i given this state X.
-	 */
-	public static Map<String, Double[]> calculateForwardMatrix(List<String> observationSequence,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, Set<String> stateSet, String startState) {
-		int numObs = observationSequence.size();
-		if (numObs == 0) {
-			return null;
-		}
-
-		Map<String, Double[]> forwardMatrix = new HashMap<String, Double[]>();
-
-		for (String state : stateSet) {
-			forwardMatrix.put(state, new Double[numObs]);
-		}
-
-		// Begin by filling out the matrix for the first observation. This requires
-		// a special case because we start out at startState with a probability of 1.0.
-		for (String state : stateSet) {
-			// P(state|#) * P(firstObservation|state)
-			StringPair transStringPair = new StringPair(startState, state);
-			Double logProbStateGivenStart = transLogProbDict.get(transStringPair);
-
-			StringPair emisStringPair = new StringPair(state, observationSequence.get(0));
-			Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-
-			Double logProb = calcLogProductOfLogs(logProbStateGivenStart, logProbObsGivenState);
-			forwardMatrix.get(state)[0] = logProb;
-		}
-
-		// Now complete the rest of the matrix.
-		for (int i = 1; i < numObs; i++) {
-			String obs = observationSequence.get(i);
-
-			for (String state : stateSet) {
-				Double totalLogProb = null; // Probability starts out as 0 and accumulates from all previous states.
-
-				// The emission probability is the same given one state.
-				StringPair emisStringPair = new StringPair(state, obs);
-				Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-
-				for (String prevState : stateSet) {
-					// P(state|prevState) * P(obs|state) * Forward(i-1, prevState)
-					StringPair transStringPair = new StringPair(prevState, state);
-					Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
-
-					Double prevObsPrevStateForwardLogProb = forwardMatrix.get(prevState)[i-1];
-
-					Double newLogProb = calcLogProductOfLogs(calcLogProductOfLogs(logProbStateGivenPrevState, logProbObsGivenState), prevObsPrevStateForwardLogProb);
-					totalLogProb = calcLogSumOfLogs(totalLogProb, newLogProb);
-				}
-
-				forwardMatrix.get(state)[i] = totalLogProb;
-			}
-		}
-
-		return forwardMatrix;
-	}
-
-	/**
-	 * Calculates the backward matrix given an observation sequence and model parameters.
-	 * Returns a dictionary mapping each state X to an array of log probabilities, where each
-	 * log probability at index i corresponds to the sum over all possible subsequent taggings
-	 * given this state X, not including the observation i.
-	 */
-	public static Map<String, Double[]> calculateBackwardMatrix(List<String> observationSequence,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, Set<String> stateSet, String startState) {
-		int numObs = observationSequence.size();
-		if (numObs == 0) {
-			return null;
-		}
-
-		Map<String, Double[]> backwardMatrix = new HashMap<String, Double[]>();
-
-		for (String state : stateSet) {
-			backwardMatrix.put(state, new Double[numObs]);
-		}
-
-		// Begin by filling out the matrix for the last observation. This requires
-		// a special case because we start out with a subsequent taggings probability of 1.0.
-		for (String state : stateSet) {
-			backwardMatrix.get(state)[numObs-1] = Math.log(1.0) / Math.log(2); 
-		}
-
-		// Now complete the rest of the matrix.
-		for (int i = numObs - 2; i >= 0; i--) {
-			String nextObs = observationSequence.get(i+1);
-
-			for (String state : stateSet) {
-				Double totalLogProb = null; // Probability starts out as 0 and accumulates from all next states.
-
-				for (String nextState : stateSet) {
-					// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState)
-					StringPair transStringPair = new StringPair(state, nextState);
-					Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
-
-					StringPair emisStringPair = new StringPair(nextState, nextObs);
-					Double logProbNextObsGivenNextState = emisLogProbDict.get(emisStringPair);
-
-					Double nextObsNextStateBackwardLogProb = backwardMatrix.get(nextState)[i+1];
-
-					Double newLogProb = calcLogProductOfLogs(calcLogProductOfLogs(logProbStateGivenPrevState, logProbNextObsGivenNextState), nextObsNextStateBackwardLogProb);
-					totalLogProb = calcLogSumOfLogs(totalLogProb, newLogProb);
-				}
-
-				backwardMatrix.get(state)[i] = totalLogProb;
-			}
-		}
-
-		return backwardMatrix;
-	}
-
 	/**
 	 * Parses the given pair file, where each line is of the form
 	 * "<from_state> <to_state>" (for transition files) or "<state> <token>" for emission files.
@@ -426,131 +325,147 @@ public class LocalEMDev {
 		return logX + logY;
 	}
 
-	// Test
-	public static void printForwardOrBackwardMatrix(Map<String, Double[]> matrix, List<String> observationSequence) {
-		DecimalFormat df = new DecimalFormat("#.#######");
+	/**
+	 * Cross-checks the log-sum-exp kernel StaticUtil.calcLogSumOfLogs(double[], int, int) and the
+	 * primitive pairwise StaticUtil.calcLogSumOfLogs(double, double) against folding the same values
+	 * pairwise with the reference StaticUtil.calcLogSumOfLogs(Double, Double), on random columns. Some
+	 * values of a column are log(0), and columns draw their values from ranges that cover non-negative
+	 * logs and values hundreds of orders of magnitude apart. Returns the largest absolute difference
+	 * between the log sums, and throws if it is above LOG_SUM_TOLERANCE.
+	 */
+	public static double crossCheckLogSumOfLogs(Random random, int numColumns) throws Exception {
+		// Each column draws its values uniformly from one of these ranges of logs.
+		double[][] logRanges = {{-200.0, 0.0}, {0.0, 50.0}, {-20.0, 20.0}, {-2000.0, 0.0}};
+
+		double maxError = 0.0;
+		for (int column = 0; column < numColumns; column++) {
+			double[] logRange = logRanges[column % logRanges.length];
+			double[] logValues = new double[random.nextInt(64)];
+			Double referenceLogSum = null;
+			double pairwiseLogSum = Double.NEGATIVE_INFINITY;
+
+			for (int i = 0; i < logValues.length; i++) {
+				if (random.nextInt(4) == 0) {
+					logValues[i] = Double.NEGATIVE_INFINITY;
+				} else {
+					logValues[i] = logRange[0] + (logRange[1] - logRange[0]) * random.nextDouble();
+					referenceLogSum = StaticUtil.calcLogSumOfLogs(referenceLogSum, (Double) logValues[i]);
+				}
+				pairwiseLogSum = StaticUtil.calcLogSumOfLogs(pairwiseLogSum, logValues[i]);
+			}
 
-		for (String obs : observationSequence) {
-			// System.out.print("\t\t" + obs);
+			double kernelLogSum = StaticUtil.calcLogSumOfLogs(logValues, 0, logValues.length);
+			if (referenceLogSum == null) {
+				if (kernelLogSum != Double.NEGATIVE_INFINITY || pairwiseLogSum != Double.NEGATIVE_INFINITY) {
+					throw new Exception("Log sum of column " + column + " of log(0) values is not log(0): kernel "
+							+ kernelLogSum + ", pairwise " + pairwiseLogSum + ".");
+				}
+				continue;
+			}
+
+			double error = Math.max(Math.abs(kernelLogSum - referenceLogSum), Math.abs(pairwiseLogSum - referenceLogSum));
+			if (!(error <= LOG_SUM_TOLERANCE)) {
+				throw new Exception("Log sum of column " + column + " is off by " + error + ": reference " + referenceLogSum
+						+ ", kernel " + kernelLogSum + ", pairwise " + pairwiseLogSum + ".");
+			}
+			maxError = Math.max(maxError, error);
 		}
 
-		// System.out.println();
+		return maxError;
+	}
 
-		for (Entry<String, Double[]> entry : matrix.entrySet()) {
-			// System.out.print(entry.getKey());
+	/**
+	 * Cross-checks the E-step in the given mode and with the given minimum length for checkpointing
+	 * against the log mode on the full trellis, on the given observation sequences under the given model.
+	 * Throws if the log alpha of a sequence or the total expected counts differ by more than
+	 * LOG_SUM_TOLERANCE and COUNT_TOLERANCE.
+	 */
+	public static void crossCheckForwardBackward(HmmModel model, List<List<String>> obsSequences, String mode,
+			int checkpointMinLength) throws Exception {
+		String what = "E-step mode " + mode + " with checkpoint min length " + checkpointMinLength;
+		ForwardBackward reference = new ForwardBackward(model, ForwardBackward.MODE_LOG, Integer.MAX_VALUE);
+		ForwardBackward forwardBackward = new ForwardBackward(model, mode, checkpointMinLength);
+		ExpectedCounts referenceCounts = new ExpectedCounts(model);
+		ExpectedCounts counts = new ExpectedCounts(model);
+
+		for (List<String> obsSequence : obsSequences) {
+			int[] encodedObsSequence = model.encode(obsSequence);
 
-			for (Double logProb : entry.getValue()) {
-				// System.out.print("\t\t" + (logProb == null ? 0 : df.format(Math.pow(2, logProb))));
+			double referenceLogAlpha = reference.calculateForward(encodedObsSequence, encodedObsSequence.length);
+			double logAlpha = forwardBackward.calculateForward(encodedObsSequence, encodedObsSequence.length);
+			if (referenceLogAlpha == Double.NEGATIVE_INFINITY || logAlpha == Double.NEGATIVE_INFINITY) {
+				if (referenceLogAlpha != logAlpha) {
+					throw new Exception(what + ": log alpha " + logAlpha + " of " + obsSequence + ", expected " + referenceLogAlpha + ".");
+				}
+				continue;
+			}
+			if (!(Math.abs(logAlpha - referenceLogAlpha) <= LOG_SUM_TOLERANCE)) {
+				throw new Exception(what + ": log alpha " + logAlpha + " of " + obsSequence + ", expected " + referenceLogAlpha + ".");
 			}
 
-			// System.out.println();
+			referenceCounts.addLogAlpha(referenceLogAlpha);
+			reference.accumulateCounts(referenceLogAlpha, referenceCounts);
+			counts.addLogAlpha(logAlpha);
+			forwardBackward.accumulateCounts(logAlpha, counts);
 		}
+
+		crossCheckLogCountMaps(what + ", transitions", referenceCounts.makeTransitionLogCountMap(), counts.makeTransitionLogCountMap());
+		crossCheckLogCountMaps(what + ", emissions", referenceCounts.makeEmissionLogCountMap(), counts.makeEmissionLogCountMap());
 	}
 
 	/**
-	 * Calculates the transition counts for an observation sequence.
+	 * Runs the given number of iterations of online EM as the mappers of EMDriver do, over a single
+	 * split of the given observation sequences with a mini-batch per sequence, each iteration starting
+	 * from the model of the last. Throws if the step size of an update is not smaller than that of the
+	 * update before, including the last update of the previous iteration.
 	 */
-	public static Map<StringPair, Double> calculateLogTransitionCounts(Map<String, Double[]> forwardMatrix, Map<String, Double[]> backwardMatrix, Double logAlpha,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, List<String> observationSequence,
-			Set<String> stateSet, String startState) {
-		Map<StringPair, Double> logTransCounts = new HashMap<StringPair, Double>();
+	public static void checkOnlineStepSizes(HmmModel model, List<List<String>> obsSequences, int numIterations)
+			throws Exception {
+		double prevStepSize = Double.POSITIVE_INFINITY;
 
-		int numObs = observationSequence.size();
+		for (int i = 0; i < numIterations; i++) {
+			Configuration conf = new Configuration(false);
+			conf.setInt(OnlineEM.ONLINE_BATCH_SIZE_KEY, 1);
+			conf.setInt(ExpectationMapper.MODEL_ITERATION_KEY, i);
+			conf.setInt(ExpectationMapper.ONLINE_BATCHES_PER_SPLIT_KEY, i == 0 ? 0 : obsSequences.size());
+			OnlineEM online = ExpectationMapper.makeOnlineEM(model, conf);
 
-		// Calculate the transition counts from #.
-		for (String state : stateSet) {
-			Double forwardLogProb = forwardMatrix.get(state)[0];
-			Double backwardLogProb = backwardMatrix.get(state)[0];
-
-			Double logProbStateGivenStart = calcLogProductOfLogs(forwardLogProb, backwardLogProb);
-			StringPair transStringPair = new StringPair(startState, state);
-			
-			if (logProbStateGivenStart != null) {
-				logTransCounts.put(transStringPair, logProbStateGivenStart);
-			}
-		}
-
-		// Calculate transition counts for the rest of the transitions.
-		for (int i = 0; i < numObs - 1; i++) {
-			String nextObs = observationSequence.get(i+1);
-
-			for (String fromState : stateSet) {
-				Double forwardLogProb = forwardMatrix.get(fromState)[i];
-
-				for (String toState : stateSet) {
-					Double backwardLogProb = backwardMatrix.get(toState)[i+1];
-
-					StringPair transStringPair = new StringPair(fromState, toState);
-					Double transLogProb = transLogProbDict.get(transStringPair);
-
-					StringPair emisStringPair = new StringPair(toState, nextObs);
-					Double emisLogProb = emisLogProbDict.get(emisStringPair);
-
-					Double logProbToStateGivenFromState = calcLogProductOfLogs(calcLogProductOfLogs(calcLogProductOfLogs(forwardLogProb, transLogProb), emisLogProb), backwardLogProb);					
-					Double prevLogTransCount = logTransCounts.get(transStringPair);
-					
-					Double sumLogProbToStateGivenFromState = calcLogSumOfLogs(prevLogTransCount, logProbToStateGivenFromState);
-					if (sumLogProbToStateGivenFromState != null) {
-						logTransCounts.put(transStringPair, sumLogProbToStateGivenFromState);
-					}
-//					else {
-//						logTransCounts.remove(transStringPair);
-//					}
-
-					// System.out.println("------------------------");
-					// System.out.println("i = " + i);
-					// System.out.println(transStringPair);
-					// System.out.println("Forward: " + Math.pow(2, forwardLogProb));
-					// System.out.println("Backward: " + Math.pow(2, backwardLogProb));
-					// System.out.println("New: " + Math.pow(2, logProbToStateGivenFromState));
-					// System.out.println("Total: " + Math.pow(2, logTransCounts.get(transStringPair)));
+			for (List<String> obsSequence : obsSequences) {
+				double stepSize = online.getStepSize();
+				if (!(stepSize < prevStepSize)) {
+					throw new Exception("Online step size " + stepSize + " of iteration " + i + " is not below " + prevStepSize + ".");
 				}
+				prevStepSize = stepSize;
+
+				ForwardBackward forwardBackward = new ForwardBackward(online.getModel());
+				ExpectedCounts counts = new ExpectedCounts(online.getModel());
+				int[] encodedObsSequence = online.getModel().encode(obsSequence);
+				double logAlpha = forwardBackward.calculateForward(encodedObsSequence, encodedObsSequence.length);
+				counts.addLogAlpha(logAlpha);
+				forwardBackward.accumulateCounts(logAlpha, counts);
+				online.update(counts);
 			}
-		}
-		
-		// Go through and divide all counts by alpha.
-		for (Entry<StringPair, Double> entry : logTransCounts.entrySet()) {
-			logTransCounts.put(entry.getKey(), entry.getValue() - logAlpha);
-		}
 
-		return logTransCounts;
+			model = online.getModel();
+		}
 	}
 
 	/**
-	 * Calculates the emission counts for an observation sequence.
+	 * Throws if a count of the given log count maps differs from the reference one by more than
+	 * COUNT_TOLERANCE. A count missing from a map is 0.
 	 */
-	public static Map<StringPair, Double> calculateLogEmissionCounts(Map<String, Double[]> forwardMatrix, Map<String, Double[]> backwardMatrix, Double logAlpha,
-			List<String> observationSequence, Set<String> stateSet) {
-		Map<StringPair, Double> logEmisCounts = new HashMap<StringPair, Double>();
-
-		int numObs = observationSequence.size();
-		for (int i = 0; i < numObs; i++) {
-			String obs = observationSequence.get(i);
-
-			for (String state : stateSet) {
-				Double forwardLogProb = forwardMatrix.get(state)[i];
-				Double backwardLogProb = backwardMatrix.get(state)[i];
-
-				Double logProbObsGivenState = calcLogProductOfLogs(forwardLogProb, backwardLogProb);
-				StringPair emisStringPair = new StringPair(state, obs);
-				Double prevLogEmisCount = logEmisCounts.get(emisStringPair);
-				
-				Double sumLogEmisCount = calcLogSumOfLogs(prevLogEmisCount, logProbObsGivenState);
-				if (sumLogEmisCount != null) {
-					logEmisCounts.put(emisStringPair, sumLogEmisCount);
-				} 
-//				else {
-//					logEmisCounts.remove(emisStringPair);
-//				}
+	private static void crossCheckLogCountMaps(String what, Map<StringPair, Double> referenceLogCounts,
+			Map<StringPair, Double> logCounts) throws Exception {
+		Set<StringPair> keys = new HashSet<StringPair>(referenceLogCounts.keySet());
+		keys.addAll(logCounts.keySet());
+
+		for (StringPair key : keys) {
+			double referenceCount = referenceLogCounts.containsKey(key) ? Math.pow(2, referenceLogCounts.get(key)) : 0.0;
+			double count = logCounts.containsKey(key) ? Math.pow(2, logCounts.get(key)) : 0.0;
+			if (!(Math.abs(count - referenceCount) <= COUNT_TOLERANCE * Math.max(1.0, referenceCount))) {
+				throw new Exception(what + ": count " + count + " of " + key + ", expected " + referenceCount + ".");
 			}
 		}
-		
-		// Go through and divide all counts by alpha.
-		for (Entry<StringPair, Double> entry : logEmisCounts.entrySet()) {
-			logEmisCounts.put(entry.getKey(), entry.getValue() - logAlpha);
-		}
-
-		return logEmisCounts;
 	}
 
 	public static void printParameterMap(Map<StringPair, Double> paramMap) {
@@ -565,114 +480,4 @@ public class LocalEMDev {
 			}
 		}
 	}
-
-	/**
-	 * Returns the log alpha for the observation sequence under the given model, or null if alpha == 0.
-	 */
-	private static Double getLogAlpha(Map<String, Double[]> forwardMatrix) {
-		Double logAlpha = null;
-
-		for (Entry<String, Double[]> entry : forwardMatrix.entrySet()) {
-			Double[] logProbArray = entry.getValue();
-			Double lastLogProb = entry.getValue()[logProbArray.length - 1];
-
-			logAlpha = calcLogSumOfLogs(logAlpha, lastLogProb);
-		}
-
-		return logAlpha;
-	}
-
-	private static TaggedObservationSequence calculateViterbiTagging(List<String> observationSequence, Map<StringPair, Double> transLogProbDict,
-			Map<StringPair, Double> emisLogProbDict, Set<String> stateSet, String startState) {
-		int numObs = observationSequence.size();
-		if (numObs == 0) {
-			return null;
-			// TODO: What happens next?
-		}
-
-		// Keeps track of probabilities.
-		Map<String, Double[]> viterbiLogProbMatrix = new HashMap<String, Double[]>();
-		// Keeps track of previous tag that maximized probability.
-		Map<String, String[]> viterbiPrevStateMatrix = new HashMap<String, String[]>();
-
-		for (String state : stateSet) {
-			viterbiLogProbMatrix.put(state, new Double[numObs]);
-			viterbiPrevStateMatrix.put(state, new String[numObs]);
-		}
-
-		// Begin by filling out the matrix for the first observation. This requires a
-		// special case because we start out at startState with a probability of 1.0.
-		for (String state : stateSet) {
-			// P(state|#) * P(firstObservation|state)
-			StringPair transStringPair = new StringPair(startState, state);
-			Double logProbStateGivenStart = transLogProbDict.get(transStringPair);
-
-			StringPair emisStringPair = new StringPair(state, observationSequence.get(0));
-			Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-
-			Double logProb = StaticUtil.calcLogProductOfLogs(logProbStateGivenStart, logProbObsGivenState);
-			viterbiLogProbMatrix.get(state)[0] = logProb;
-		}
-
-		// Now complete the rest of the matrix.
-		for (int i = 1; i < numObs; i++) {
-			String obs = observationSequence.get(i);
-
-			for (String state : stateSet) {
-				// The emission probability is the same given one state.
-				StringPair emisStringPair = new StringPair(state, obs);
-				Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-
-				for (String prevState : stateSet) {
-					// P(state|prevState) * P(obs|state) * Forward(i-1, prevState)
-					StringPair transStringPair = new StringPair(prevState, state);
-					Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
-
-					Double prevObsPrevStateViterbiLogProb = viterbiLogProbMatrix.get(prevState)[i-1];
-
-					Double logProb = StaticUtil.calcLogProductOfLogs(StaticUtil.calcLogProductOfLogs(logProbStateGivenPrevState, logProbObsGivenState), prevObsPrevStateViterbiLogProb);
-					Double maxLogProb = viterbiLogProbMatrix.get(state)[i];
-					if (maxLogProb == null || (logProb != null && logProb > maxLogProb)) {
-						viterbiLogProbMatrix.get(state)[i] = logProb;
-						viterbiPrevStateMatrix.get(state)[i] = prevState;
-					}
-				}
-			}
-		}
-
-		// Find the tagging for the last emission in the sequence.
-		Double lastMaxLogProb = null;
-		String lastMaxState = null;
-		for (String state : stateSet) {
-			Double lastLogProb = viterbiLogProbMatrix.get(state)[numObs - 1];
-			if (lastMaxLogProb == null || (lastLogProb != null && lastLogProb > lastMaxLogProb)) {
-				lastMaxLogProb = lastLogProb;
-				lastMaxState = state;
-			}
-		}
-
-		// Create the optimal tagging from the matrices.
-		TaggedObservationSequence optimalTagging = new TaggedObservationSequence();
-
-		String state = lastMaxState;
-		for (int i = numObs - 1; i >= 0; i--) {
-			String obs = observationSequence.get(i);
-			optimalTagging.prependObsTag(new StringPair(obs, state));
-
-			// Update state for the preceding observation.
-			state = viterbiPrevStateMatrix.get(state)[i];
-		}
-
-		return optimalTagging;
-	}
-	
-	private static void addLogPairDicts(Map<StringPair, Double> accumulatorDict, Map<StringPair, Double> dictToAdd) {
-		for (Entry<StringPair, Double> entry : dictToAdd.entrySet()) {
-			if (accumulatorDict.containsKey(entry.getKey())) {
-				accumulatorDict.put(entry.getKey(), calcLogSumOfLogs(entry.getValue(), accumulatorDict.get(entry.getKey())));
-			} else {
-				accumulatorDict.put(entry.getKey(), entry.getValue());
-			}
-		}
-	}
 }